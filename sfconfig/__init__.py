@@ -13,6 +13,7 @@ Example:
 """
 
 from .config import SFConfig
+from .daemon import ConfigBuilderDaemon
 from .diff import SFDiff
 from .exceptions import (
     SFConfigError,
@@ -26,6 +27,7 @@ __version__ = "0.1.6"
 __all__ = [
     "SFConfig",
     "SFDiff",
+    "ConfigBuilderDaemon",
     "SFConfigError",
     "SFNotFoundError",
     "SFValidationError",
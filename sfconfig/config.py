@@ -1,13 +1,24 @@
 """SFConfig class for managing Screaming Frog configuration files."""
 
 import json
+import locale
+import os
 import subprocess
+from contextlib import contextmanager
 from pathlib import Path
-from typing import Any, Dict, List, Optional, Union
+from typing import Any, Dict, Iterator, List, Optional, Tuple, Union
 
+from .daemon import ConfigBuilderDaemon
 from .diff import SFDiff
 from .exceptions import SFConfigError, SFCrawlError, SFParseError, SFValidationError
-from .paths import get_classpath_separator, get_java_path, get_sf_cli_path, get_sf_jar_path
+from .paths import (
+    compute_jar_set_hash,
+    get_classpath_jars,
+    get_classpath_separator,
+    get_java_path,
+    get_sf_cli_path,
+    get_sf_jar_path,
+)
 
 
 class SFConfig:
@@ -25,6 +36,18 @@ class SFConfig:
     """
 
     JAR_PATH = Path(__file__).parent / "java" / "ConfigBuilder.jar"
+    _daemon: Optional[ConfigBuilderDaemon] = None
+
+    # Optional AppCDS archive created by create_cds_archive(); SF_CDS_ARCHIVE also works
+    cds_archive: Optional[str] = None
+
+    # SF jars to launch with instead of the whole install, keyed by SF jar directory;
+    # see resolve_classpath()
+    minimal_classpath: Dict[str, List[str]] = {}
+
+    # Patch documents larger than this are piped to the CLI on stdin instead of argv;
+    # kept well under the 32,767-character Windows command line limit
+    PATCHES_STDIN_THRESHOLD = 8 * 1024
 
     def __init__(
         self,
@@ -495,6 +518,86 @@ class SFConfig:
         self._exclude_ops.append({"op": "clear"})
         return self
 
+    def add_excludes(self, patterns: List[str], unique: bool = True) -> "SFConfig":
+        """Add many exclude patterns at once.
+
+        Args:
+            patterns: Regex patterns to exclude.
+            unique: Skip patterns that are already in the list.
+
+        Returns:
+            Self for method chaining.
+        """
+        op = "append_unique" if unique else "append"
+        self._exclude_ops.append({"op": op, "values": list(patterns)})
+        return self
+
+    def remove_excludes(self, patterns: List[str]) -> "SFConfig":
+        """Remove many exclude patterns at once.
+
+        Args:
+            patterns: The exact patterns to remove.
+
+        Returns:
+            Self for method chaining.
+        """
+        self._exclude_ops.append({"op": "remove", "values": list(patterns)})
+        return self
+
+    def retain_excludes(self, patterns: List[str]) -> "SFConfig":
+        """Keep only the exclude patterns that appear in ``patterns``.
+
+        Args:
+            patterns: The exact patterns to keep.
+
+        Returns:
+            Self for method chaining.
+        """
+        self._exclude_ops.append({"op": "retain", "values": list(patterns)})
+        return self
+
+    def dedupe_excludes(self) -> "SFConfig":
+        """Drop repeated exclude patterns, keeping the first occurrence.
+
+        Returns:
+            Self for method chaining.
+        """
+        self._exclude_ops.append({"op": "dedupe"})
+        return self
+
+    def replace_excludes(self, pattern: str, replacement: str) -> "SFConfig":
+        """Rewrite every exclude pattern with a regex substitution.
+
+        Args:
+            pattern: Java regex to search for in each entry.
+            replacement: Replacement text; ``$1`` refers to groups.
+
+        Returns:
+            Self for method chaining.
+
+        Example:
+            >>> config.replace_excludes(r"^http://", "https://")
+        """
+        self._exclude_ops.append({"op": "replace", "pattern": pattern, "replacement": replacement})
+        return self
+
+    def compact_excludes(self) -> "SFConfig":
+        """Shorten the exclude list without changing what it matches.
+
+        Duplicates and patterns covered by another pattern are dropped. Literal
+        URLs and literal-prefix patterns (``https://example\\.com/a/.*``) are
+        collapsed into a few regexes that share common prefixes. The shorter
+        list makes the config smaller and faster to load and to match.
+
+        Returns:
+            Self for method chaining.
+
+        Example:
+            >>> config.add_excludes(retired_urls).compact_excludes().save()
+        """
+        self._exclude_ops.append({"op": "compact"})
+        return self
+
     @property
     def excludes(self) -> List[str]:
         """List current exclude patterns.
@@ -541,6 +644,40 @@ class SFConfig:
         self._include_ops.append({"op": "clear"})
         return self
 
+    def add_includes(self, patterns: List[str], unique: bool = True) -> "SFConfig":
+        """Add many include patterns at once.
+
+        Args:
+            patterns: Regex patterns to include.
+            unique: Skip patterns that are already in the list.
+
+        Returns:
+            Self for method chaining.
+        """
+        op = "append_unique" if unique else "append"
+        self._include_ops.append({"op": op, "values": list(patterns)})
+        return self
+
+    def dedupe_includes(self) -> "SFConfig":
+        """Drop repeated include patterns, keeping the first occurrence.
+
+        Returns:
+            Self for method chaining.
+        """
+        self._include_ops.append({"op": "dedupe"})
+        return self
+
+    def compact_includes(self) -> "SFConfig":
+        """Shorten the include list without changing what it matches.
+
+        See :meth:`compact_excludes`.
+
+        Returns:
+            Self for method chaining.
+        """
+        self._include_ops.append({"op": "compact"})
+        return self
+
     @property
     def includes(self) -> List[str]:
         """List current include patterns.
@@ -599,34 +736,10 @@ class SFConfig:
             patches["custom_javascript"] = self._custom_js_ops
 
         if self._exclude_ops:
-            # Convert ops to the format expected by Java CLI
-            if len(self._exclude_ops) == 1 and self._exclude_ops[0].get("op") == "clear":
-                patches["mExcludeManager.mExcludePatterns"] = {"op": "clear"}
-            else:
-                # Combine all ops
-                combined_op = {"op": "append", "values": []}
-                for op in self._exclude_ops:
-                    if op.get("op") == "append":
-                        combined_op["values"].extend(op.get("values", []))
-                    elif op.get("op") == "remove":
-                        combined_op = {"op": "remove", "values": op.get("values", [])}
-                    elif op.get("op") == "clear":
-                        combined_op = {"op": "clear"}
-                patches["mExcludeManager.mExcludePatterns"] = combined_op
+            patches["mExcludeManager.mExcludePatterns"] = self._exclude_ops
 
         if self._include_ops:
-            if len(self._include_ops) == 1 and self._include_ops[0].get("op") == "clear":
-                patches["mCrawlConfig.mIncludePatterns"] = {"op": "clear"}
-            else:
-                combined_op = {"op": "append", "values": []}
-                for op in self._include_ops:
-                    if op.get("op") == "append":
-                        combined_op["values"].extend(op.get("values", []))
-                    elif op.get("op") == "remove":
-                        combined_op = {"op": "remove", "values": op.get("values", [])}
-                    elif op.get("op") == "clear":
-                        combined_op = {"op": "clear"}
-                patches["mCrawlConfig.mIncludePatterns"] = combined_op
+            patches["mCrawlConfig.mIncludePatterns"] = self._include_ops
 
         patches_json = json.dumps(patches)
 
@@ -828,16 +941,22 @@ class SFConfig:
         cls,
         config_a: Union[str, "SFConfig"],
         config_b: Union[str, "SFConfig"],
-        prefix: Optional[str] = None,
+        prefix: Optional[Union[str, List[str]]] = None,
         sf_path: Optional[str] = None,
+        list_mode: Optional[str] = None,
     ) -> SFDiff:
         """Compare two configs.
 
         Args:
             config_a: First config (path or SFConfig instance).
             config_b: Second config (path or SFConfig instance).
-            prefix: Optional path prefix to filter differences.
+            prefix: Optional path prefix (or list of prefixes) to filter differences.
+                Only matching subtrees are walked.
             sf_path: Optional custom path to SF installation directory.
+            list_mode: How list fields are compared. ``"set"`` (default) reports
+                added, removed and unchanged entries; ``"multiset"`` keeps
+                duplicates; ``"edits"`` returns an order-aware edit script with
+                moved entries; ``"counts"`` returns only counts.
 
         Returns:
             SFDiff object representing the differences.
@@ -856,17 +975,583 @@ class SFConfig:
 
         args = ["--diff", "--config-a", path_a, "--config-b", path_b]
         if prefix:
+            if not isinstance(prefix, str):
+                prefix = ",".join(prefix)
             args.extend(["--prefix", prefix])
+        if list_mode:
+            args.extend(["--list-diff", list_mode])
 
         result = cls._run_java(*args, sf_path=sf_path)
         return SFDiff(result)
 
+    @classmethod
+    def subtree_hashes(
+        cls,
+        config: Union[str, "SFConfig"],
+        prefix: Optional[Union[str, List[str]]] = None,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, str]:
+        """Get structural hashes of a config's object subtrees.
+
+        Two subtrees with the same hash have identical contents, so sections
+        can be compared across configs without diffing them.
+
+        Args:
+            config: Config path or SFConfig instance.
+            prefix: Optional path prefix (or list of prefixes) to limit the subtrees.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Mapping of subtree path (``""`` for the root) to hex hash.
+
+        Example:
+            >>> a = SFConfig.subtree_hashes("a.seospiderconfig")
+            >>> b = SFConfig.subtree_hashes("b.seospiderconfig")
+            >>> a["mCrawlConfig"] == b["mCrawlConfig"]
+            True
+        """
+        path = config._path if isinstance(config, SFConfig) else str(config)
+        if sf_path is None and isinstance(config, SFConfig):
+            sf_path = config._sf_path
+
+        args = ["--inspect", "--config", path, "--subtree-hashes"]
+        if prefix:
+            if not isinstance(prefix, str):
+                prefix = ",".join(prefix)
+            args.extend(["--prefix", prefix])
+
+        result = cls._run_java(*args, sf_path=sf_path)
+        return result.get("subtreeHashes", {})
+
+    @classmethod
+    def scan(
+        cls,
+        directory: str,
+        tolerance: Optional[int] = None,
+        threads: Optional[int] = None,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, Any]:
+        """Group every config under a directory into clusters of similar setups.
+
+        Each ``.seospiderconfig`` file is fingerprinted in parallel, as a whole
+        and per top-level section. Identical configs form one variant. Each
+        group is led by its most common variant and holds the variants that
+        differ from it in at most ``tolerance`` sections; each group lists the
+        fields that tell its variants apart.
+
+        Args:
+            directory: Directory to walk recursively.
+            tolerance: Number of sections (0-2) a variant may differ from its
+                group's leader.
+                Defaults to 1.
+            threads: Worker threads. Defaults to the number of CPUs.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Dictionary with files, distinctConfigs, clusters, groups and failed.
+
+        Example:
+            >>> result = SFConfig.scan("clients/")
+            >>> print(f"{result['distinctConfigs']} distinct setups")
+        """
+        args = ["--scan", str(directory)]
+        if tolerance is not None:
+            args += ["--tolerance", str(tolerance)]
+        if threads is not None:
+            args += ["--threads", str(threads)]
+        return cls._run_java(*args, sf_path=sf_path)
+
+    @classmethod
+    def optimize_patterns(
+        cls,
+        config: Union[str, "SFConfig"],
+        urls: Optional[str] = None,
+        combine: bool = False,
+        drop_unmatched: bool = False,
+        output: Optional[str] = None,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, Any]:
+        """Shrink a config's exclude and include patterns without changing what they match.
+
+        Duplicate, invalid and subsumed patterns are removed. With ``combine``,
+        the rest are merged into a few alternations with shared prefixes
+        factored out. The result is checked against the originals before it
+        is used.
+
+        Args:
+            config: Config path or SFConfig instance.
+            urls: Optional file of sample URLs, one per line. Used to find
+                patterns that match nothing and to measure matching cost.
+            combine: Merge the remaining patterns into combined alternations.
+            drop_unmatched: Also drop patterns that match no sample URL.
+            output: Optional path to write the config with the optimized lists.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Dictionary with a ``lists`` entry per pattern list (optimized
+            ``patterns``, ``duplicates``, ``subsumed``, ``invalid``,
+            ``unmatched`` and before/after ``cost``).
+
+        Example:
+            >>> result = SFConfig.optimize_patterns("client.seospiderconfig",
+            ...                                     urls="sample.txt", combine=True)
+            >>> for entry in result["lists"]:
+            ...     print(entry["path"], entry["before"], "->", entry["after"])
+        """
+        path = config._path if isinstance(config, SFConfig) else str(config)
+        if sf_path is None and isinstance(config, SFConfig):
+            sf_path = config._sf_path
+
+        args = ["--optimize-patterns", "--config", path]
+        if urls is not None:
+            args += ["--urls", str(urls)]
+        if combine:
+            args.append("--combine")
+        if drop_unmatched:
+            args.append("--drop-unmatched")
+        if output is not None:
+            args += ["--output", str(output)]
+        return cls._run_java(*args, sf_path=sf_path)
+
+    @classmethod
+    def apply_many(
+        cls,
+        targets: Union[str, List[str]],
+        patches: Optional[Dict[str, Any]] = None,
+        patches_file: Optional[str] = None,
+        output_dir: Optional[str] = None,
+        dry_run: bool = False,
+        threads: Optional[int] = None,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, Any]:
+        """Apply one patch set to many templates.
+
+        The patches are compiled once, so unknown fields, malformed list or
+        rule ops and values of the wrong type fail the whole run before any
+        template is read. Each template is then patched in parallel and
+        written to ``output_dir`` under its own file name.
+
+        Args:
+            targets: File of template paths, one per line, or a list of paths
+                to send on stdin.
+            patches: Patch document, in the same format as ``save()`` sends.
+            patches_file: Path to a patch document. Use this instead of
+                ``patches`` for documents too large for the command line when
+                ``targets`` is a list.
+            output_dir: Directory to write the patched templates to. Required
+                unless ``dry_run`` is set.
+            dry_run: Report the changes without writing anything.
+            threads: Worker threads. Defaults to the number of CPUs.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Dictionary with ``results`` (one entry per template with
+            ``template``, ``outputPath``, ``changes`` and ``warnings``, or an
+            error) and ``summary`` (``targets``, ``applied`` and ``failed``).
+
+        Example:
+            >>> result = SFConfig.apply_many(["a.seospiderconfig", "b.seospiderconfig"],
+            ...                              patches={"mCrawlConfig.mMaxUrls": 1000},
+            ...                              output_dir="out")
+            >>> result["summary"]["failed"]
+            0
+        """
+        args = ["--apply-many", "--targets"]
+        stdin = None
+        if isinstance(targets, (str, os.PathLike)):
+            args.append(str(targets))
+        else:
+            args.append("-")
+            stdin = "".join(f"{target}\n" for target in targets)
+        if patches is not None:
+            args += ["--patches", json.dumps(patches)]
+        if patches_file is not None:
+            args += ["--patches-file", str(patches_file)]
+        if output_dir is not None:
+            args += ["--output-dir", str(output_dir)]
+        if dry_run:
+            args.append("--dry-run")
+        if threads is not None:
+            args += ["--threads", str(threads)]
+        if stdin is None:
+            args, stdin = cls._patches_on_stdin(args)
+
+        records = cls._run_java_lines(*args, stdin=stdin, sf_path=sf_path)
+        return {"results": records[:-1], "summary": records[-1]["summary"]}
+
+    @classmethod
+    def scope(
+        cls,
+        config: Union[str, "SFConfig"],
+        urls: Union[str, List[str]],
+        threads: Optional[int] = None,
+        chunk_size: Optional[int] = None,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, Any]:
+        """Check which URLs a config would crawl.
+
+        Each URL is run through the config's allowed domains, exclude list and
+        include patterns in the same order SF applies them: a URL outside the
+        allowed domains is rejected first, and an exclude wins over an include.
+
+        Args:
+            config: Config path or SFConfig instance.
+            urls: File of URLs, one per line, or a list of URLs to send on stdin.
+            threads: Worker threads. Defaults to the number of CPUs.
+            chunk_size: URLs per work unit. Defaults to the CLI's chunk size.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Dictionary with ``results`` (one entry per URL with ``url``,
+            ``inScope``, ``rule`` and the matching ``pattern`` and ``domain``)
+            and ``summary`` (counts per rule).
+
+        Example:
+            >>> result = SFConfig.scope("client.seospiderconfig",
+            ...                         ["https://example.com/blog/a"])
+            >>> result["results"][0]["rule"]
+            'include'
+        """
+        path = config._path if isinstance(config, SFConfig) else str(config)
+        if sf_path is None and isinstance(config, SFConfig):
+            sf_path = config._sf_path
+
+        args = ["--scope", "--config", path]
+        stdin = None
+        if isinstance(urls, (str, os.PathLike)):
+            args += ["--urls", str(urls)]
+        else:
+            args += ["--urls", "-"]
+            stdin = "".join(f"{url}\n" for url in urls)
+        if threads is not None:
+            args += ["--threads", str(threads)]
+        if chunk_size is not None:
+            args += ["--chunk-size", str(chunk_size)]
+
+        records = cls._run_java_lines(*args, stdin=stdin, sf_path=sf_path)
+        return {"results": records[:-1], "summary": records[-1]["summary"]}
+
+    @classmethod
+    def schema(
+        cls,
+        config: Optional[str] = None,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, Any]:
+        """Get the field catalogue for the installed SF version.
+
+        The snapshot (field paths, types, enum options, editability and the
+        config class layout) is extracted once per SF install and cached on
+        disk, keyed by a hash of the SF jar.
+
+        Args:
+            config: A .seospiderconfig to build the snapshot from if none is
+                cached yet. Defaults to SF's own config when available.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Dictionary with fields, classes, enums and sfVersion.
+        """
+        if config is None:
+            from .paths import get_default_config_path
+
+            default_path = get_default_config_path()
+            config = str(default_path) if default_path else None
+
+        args = ["--schema"]
+        if config:
+            args += ["--config", str(config)]
+        return cls._run_java(*args, sf_path=sf_path)
+
+    # ==================== Config Store ====================
+
+    @classmethod
+    def store_put(
+        cls,
+        name: str,
+        config: str,
+        store: Optional[str] = None,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, Any]:
+        """Add a config to the content-addressed config store.
+
+        The config is split into its top-level subtrees (``mCrawlConfig``,
+        the exclude manager, extraction rules, ...), and each distinct
+        subtree is stored once as a gzip blob shared by every entry that
+        contains it.
+
+        Args:
+            name: Entry name. Letters, digits, ``.``, ``_`` and ``-``.
+            config: Path to the .seospiderconfig to store.
+            store: Store directory. Defaults to ``SF_CONFIG_STORE`` or
+                ``~/.sfconfig/store``.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Dictionary with split, subtrees, bytes, newBlobs and newBlobBytes.
+        """
+        args = ["--store-put", name, "--config", str(config)]
+        if store:
+            args += ["--store", str(store)]
+        return cls._run_java(*args, sf_path=sf_path)
+
+    @classmethod
+    def store_get(
+        cls,
+        name: str,
+        output_path: str,
+        store: Optional[str] = None,
+        sf_path: Optional[str] = None,
+    ) -> "SFConfig":
+        """Materialize a stored config to a file and load it.
+
+        Args:
+            name: Entry name.
+            output_path: Where to write the .seospiderconfig.
+            store: Store directory. Defaults to ``SF_CONFIG_STORE`` or
+                ``~/.sfconfig/store``.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            SFConfig loaded from the materialized file.
+        """
+        args = ["--store-get", name, "--output", str(output_path)]
+        if store:
+            args += ["--store", str(store)]
+        cls._run_java(*args, sf_path=sf_path)
+        return cls.load(str(output_path), sf_path=sf_path)
+
+    @classmethod
+    def store_list(
+        cls,
+        store: Optional[str] = None,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, Any]:
+        """List the entries of the config store.
+
+        Args:
+            store: Store directory. Defaults to ``SF_CONFIG_STORE`` or
+                ``~/.sfconfig/store``.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Dictionary with entries, blobs, logicalBytes and blobBytes.
+        """
+        args = ["--store-list"]
+        if store:
+            args += ["--store", str(store)]
+        return cls._run_java(*args, sf_path=sf_path)
+
     # ==================== Internal ====================
 
+    @classmethod
+    def start_daemon(cls, sf_path: Optional[str] = None) -> ConfigBuilderDaemon:
+        """Start a persistent ConfigBuilder process for subsequent commands.
+
+        While the daemon is running, every CLI call made for the same SF
+        installation is sent to it instead of spawning a new JVM.
+
+        Args:
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            The running daemon.
+        """
+        cls.stop_daemon()
+        cmd = cls._java_command("--serve", sf_path=sf_path)
+        cls._daemon = ConfigBuilderDaemon(cmd, sf_path=sf_path).start()
+        return cls._daemon
+
+    @classmethod
+    def stop_daemon(cls) -> None:
+        """Stop the persistent ConfigBuilder process, if one is running."""
+        daemon = cls._daemon
+        cls._daemon = None
+        if daemon is not None:
+            daemon.close()
+
+    @classmethod
+    @contextmanager
+    def daemon(cls, sf_path: Optional[str] = None) -> Iterator[ConfigBuilderDaemon]:
+        """Run a block of work against a single persistent ConfigBuilder process.
+
+        Args:
+            sf_path: Optional custom path to SF installation directory.
+
+        Example:
+            >>> with SFConfig.daemon():
+            ...     for path in ["a.seospiderconfig", "b.seospiderconfig"]:
+            ...         SFConfig.load(path).set("mCrawlConfig.mMaxThreads", 5).save()
+        """
+        running = cls.start_daemon(sf_path=sf_path)
+        try:
+            yield running
+        finally:
+            cls.stop_daemon()
+
+    @classmethod
+    def create_cds_archive(
+        cls,
+        archive_path: str,
+        sample_config: str,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, Any]:
+        """Create an AppCDS archive to speed up ConfigBuilder startup.
+
+        Runs a representative inspect/build/diff of ``sample_config`` to record
+        the classes ConfigBuilder loads, then dumps them into a class-data
+        sharing archive. Set ``SFConfig.cds_archive`` (or ``SF_CDS_ARCHIVE``)
+        to the archive path to use it; it is ignored once SF's jars change.
+
+        Args:
+            archive_path: Where to write the archive.
+            sample_config: A real .seospiderconfig to train on.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Dictionary with archivePath, jarSetHash, classCount and archiveBytes.
+        """
+        return cls._run_java(
+            "--create-cds-archive", str(archive_path),
+            "--config", str(sample_config),
+            sf_path=sf_path,
+        )
+
+    @classmethod
+    def resolve_classpath(
+        cls,
+        sample_config: str,
+        sf_path: Optional[str] = None,
+    ) -> Dict[str, Any]:
+        """Find the SF jars ConfigBuilder actually needs and launch with only those.
+
+        Deserializes ``sample_config`` against a cached class-to-jar index of
+        the SF install and follows the classes it references. The resulting
+        jars are stored in ``SFConfig.minimal_classpath`` under the install's
+        jar directory and used for every later launch against that install,
+        which keeps JVM startup from scanning the whole install.
+
+        Args:
+            sample_config: A real .seospiderconfig to resolve classes from.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Dictionary with classpath, jarCount, totalJars and missingClasses.
+        """
+        key = cls._install_key(get_sf_jar_path(sf_path))
+        cls.minimal_classpath.pop(key, None)
+        args = ["--resolve-classpath", "--config", str(sample_config)]
+        if sf_path:
+            args += ["--sf-path", str(sf_path)]
+        result = cls._run_java(*args, sf_path=sf_path)
+        if not result.get("missingClasses"):
+            cls.minimal_classpath[key] = list(result.get("classpath", []))
+        return result
+
+    @staticmethod
+    def _install_key(sf_jar_path: str) -> str:
+        """Key identifying an SF install in ``minimal_classpath``.
+
+        Args:
+            sf_jar_path: Path to the directory containing SF's JAR files.
+
+        Returns:
+            The normalized absolute jar directory.
+        """
+        return os.path.normcase(os.path.abspath(sf_jar_path))
+
+    @classmethod
+    def _minimal_jars(cls, sf_jar_path: str) -> Optional[List[Path]]:
+        """Resolved minimal SF jars for an install, if they all still exist.
+
+        Args:
+            sf_jar_path: Path to the directory containing SF's JAR files.
+
+        Returns:
+            The minimal jar list, or None to use the whole install.
+        """
+        minimal = cls.minimal_classpath.get(cls._install_key(sf_jar_path))
+        if minimal and all(os.path.isfile(jar) for jar in minimal):
+            return [Path(jar) for jar in minimal]
+        return None
+
+    @classmethod
+    def _classpath_jars(cls, sf_jar_path: str) -> List[Path]:
+        """Jars on the launch classpath, in classpath order.
+
+        Args:
+            sf_jar_path: Path to the directory containing SF's JAR files.
+
+        Returns:
+            ConfigBuilder.jar followed by the minimal SF jars when they all
+            still exist, otherwise every jar in the SF install.
+        """
+        minimal = cls._minimal_jars(sf_jar_path)
+        if minimal:
+            return [Path(cls.JAR_PATH), *minimal]
+        return get_classpath_jars(cls.JAR_PATH, sf_jar_path)
+
+    @classmethod
+    def _cds_options(cls, sf_jar_path: str) -> List[str]:
+        """JVM options for the configured AppCDS archive, if it is still valid.
+
+        Args:
+            sf_jar_path: Path to the directory containing SF's JAR files.
+
+        Returns:
+            Extra JVM options, or an empty list to start without the archive.
+        """
+        archive = cls.cds_archive or os.environ.get("SF_CDS_ARCHIVE")
+        if not archive or not os.path.exists(archive):
+            return []
+
+        try:
+            with open(f"{archive}.json", encoding="utf-8") as f:
+                metadata = json.load(f)
+        except (OSError, ValueError):
+            return []
+
+        jar_set_hash = compute_jar_set_hash(cls._classpath_jars(sf_jar_path))
+        if not jar_set_hash or metadata.get("jarSetHash") != jar_set_hash:
+            return []
+
+        # Keep any CDS mismatch warnings off stdout, which carries the JSON result
+        return [
+            f"-XX:SharedArchiveFile={archive}",
+            "-Xshare:auto",
+            "-Xlog:disable",
+            "-Xlog:all=warning:stderr",
+        ]
+
+    @classmethod
+    def _java_command(cls, *args: str, sf_path: Optional[str] = None) -> List[str]:
+        """Build the command line used to launch the Java CLI.
+
+        Args:
+            *args: Command line arguments to pass to the Java CLI.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Command as a list suitable for subprocess.
+        """
+        java = get_java_path(sf_path)
+        sf_jar_path = get_sf_jar_path(sf_path)
+        cp_sep = get_classpath_separator()
+
+        # Build classpath; a full install goes on as a wildcard to keep the command short
+        if cls._minimal_jars(sf_jar_path):
+            classpath = cp_sep.join(str(jar) for jar in cls._classpath_jars(sf_jar_path))
+        else:
+            classpath = f"{cls.JAR_PATH}{cp_sep}{sf_jar_path}/*"
+
+        return [java, *cls._cds_options(sf_jar_path), "-cp", classpath, "ConfigBuilder", *args]
+
     @classmethod
     def _run_java(cls, *args: str, sf_path: Optional[str] = None) -> Dict[str, Any]:
         """Execute Java CLI and return parsed JSON result.
 
+        Uses the persistent daemon when one is running for the same SF
+        installation, otherwise spawns a new JVM.
+
         Args:
             *args: Command line arguments to pass to the Java CLI.
             sf_path: Optional custom path to SF installation directory.
@@ -879,35 +1564,137 @@ class SFConfig:
             SFValidationError: If the CLI returns a validation error.
             SFConfigError: If the CLI returns any other error.
         """
-        java = get_java_path(sf_path)
-        sf_jar_path = get_sf_jar_path(sf_path)
-        cp_sep = get_classpath_separator()
-
-        # Build classpath
-        classpath = f"{cls.JAR_PATH}{cp_sep}{sf_jar_path}/*"
+        daemon = cls._daemon
+        if daemon is not None and daemon.alive and daemon.sf_path == sf_path:
+            return cls._check_result(daemon.request(list(args)))
 
-        cmd = [java, "-cp", classpath, "ConfigBuilder", *args]
-
-        result = subprocess.run(
-            cmd,
-            capture_output=True,
-            text=True,
-        )
-
-        # Handle empty output
-        if not result.stdout.strip():
-            if result.stderr:
-                raise SFConfigError(f"Java CLI error: {result.stderr}")
-            raise SFParseError("No output from Java CLI")
+        args, stdin = cls._patches_on_stdin(args)
+        stdout = cls._run_process(cls._java_command(*args, sf_path=sf_path), stdin)
 
         try:
-            data = json.loads(result.stdout)
+            data = json.loads(stdout)
         except json.JSONDecodeError as e:
             raise SFParseError(
-                f"Invalid JSON from CLI: {result.stdout[:200]}...\n"
+                f"Invalid JSON from CLI: {stdout[:200]}...\n"
                 f"Parse error: {e}"
             )
 
+        return cls._check_result(data)
+
+    @classmethod
+    def _run_java_lines(
+        cls,
+        *args: str,
+        stdin: Optional[str] = None,
+        sf_path: Optional[str] = None,
+    ) -> List[Dict[str, Any]]:
+        """Execute a streaming Java CLI command and return its JSON-lines records.
+
+        Streaming commands always spawn their own JVM; the daemon only serves
+        commands with a single result.
+
+        Args:
+            *args: Command line arguments to pass to the Java CLI.
+            stdin: Optional text to write to the CLI's stdin.
+            sf_path: Optional custom path to SF installation directory.
+
+        Returns:
+            Every record printed by the CLI, ending with its ``summary`` record.
+
+        Raises:
+            SFParseError: If a line is not valid JSON.
+            SFValidationError: If the command was rejected before streaming.
+            SFConfigError: If the command failed with any other error.
+        """
+        stdout = cls._run_process(cls._java_command(*args, sf_path=sf_path), stdin)
+
+        records = []
+        for line in stdout.splitlines():
+            if not line.strip():
+                continue
+            try:
+                records.append(json.loads(line))
+            except json.JSONDecodeError as e:
+                raise SFParseError(
+                    f"Invalid JSON from CLI: {line[:200]}...\n"
+                    f"Parse error: {e}"
+                )
+
+        if "summary" not in records[-1]:
+            cls._check_result(records[-1])
+            raise SFParseError("No summary from Java CLI")
+        return records
+
+    @staticmethod
+    def _run_process(cmd: List[str], stdin: Optional[str]) -> str:
+        """Run a Java CLI command and return its stdout.
+
+        Args:
+            cmd: Full command line.
+            stdin: Optional text to write to the CLI's stdin.
+
+        Returns:
+            The CLI's stdout.
+
+        Raises:
+            SFParseError: If the CLI printed nothing.
+            SFConfigError: If the CLI printed nothing but an error on stderr.
+        """
+        if stdin is None:
+            result = subprocess.run(
+                cmd,
+                capture_output=True,
+                text=True,
+            )
+            stdout, stderr = result.stdout, result.stderr
+        else:
+            # The CLI reads stdin as UTF-8 but still writes in the platform encoding
+            result = subprocess.run(
+                cmd,
+                input=stdin.encode("utf-8"),
+                capture_output=True,
+            )
+            encoding = locale.getpreferredencoding(False)
+            stdout = result.stdout.decode(encoding, errors="replace")
+            stderr = result.stderr.decode(encoding, errors="replace")
+
+        # Handle empty output
+        if not stdout.strip():
+            if stderr:
+                raise SFConfigError(f"Java CLI error: {stderr}")
+            raise SFParseError("No output from Java CLI")
+        return stdout
+
+    @classmethod
+    def _patches_on_stdin(cls, args: Tuple[str, ...]) -> Tuple[Tuple[str, ...], Optional[str]]:
+        """Move a large ``--patches`` value to stdin.
+
+        Command lines are capped at 32,767 characters on Windows and 128 KB
+        per argument on Linux, so big patch documents are sent as ``--patches-file -`` and streamed by
+        the CLI instead.
+
+        Args:
+            args: Command line arguments to pass to the Java CLI.
+
+        Returns:
+            The arguments to launch with and the text to write to stdin, if any.
+        """
+        args = tuple(args)
+        for i, arg in enumerate(args[:-1]):
+            if arg == "--patches" and len(args[i + 1]) > cls.PATCHES_STDIN_THRESHOLD:
+                return args[:i] + ("--patches-file", "-") + args[i + 2:], args[i + 1]
+        return args, None
+
+    @staticmethod
+    def _check_result(data: Dict[str, Any]) -> Dict[str, Any]:
+        """Raise the matching exception for an error response from the CLI.
+
+        Args:
+            data: Parsed JSON response from the CLI.
+
+        Returns:
+            The response unchanged if it is not an error.
+        """
         if not data.get("success", True):
             error_type = data.get("errorType", "UNKNOWN")
             error_msg = data.get("error", "Unknown error")
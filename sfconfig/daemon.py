@@ -0,0 +1,141 @@
+"""Persistent ConfigBuilder process for running many commands in one JVM."""
+
+import itertools
+import json
+import subprocess
+import threading
+from typing import Any, Dict, List, Optional
+
+from .exceptions import SFConfigError, SFParseError
+
+
+class ConfigBuilderDaemon:
+    """A long-running ConfigBuilder process speaking JSON lines.
+
+    Starting the JVM and loading Screaming Frog's classes dominates the cost
+    of a single CLI call. The daemon starts ``ConfigBuilder --serve`` once and
+    sends every subsequent command over stdin, one JSON request per line.
+
+    Example:
+        >>> with SFConfig.daemon():
+        ...     for path in paths:
+        ...         config = SFConfig.load(path)
+        ...         config.max_urls = 1000
+        ...         config.save()
+    """
+
+    def __init__(self, cmd: List[str], sf_path: Optional[str] = None):
+        """Initialize the daemon wrapper without starting it.
+
+        Args:
+            cmd: Full command used to launch ``ConfigBuilder --serve``.
+            sf_path: SF installation path the process was started for.
+        """
+        self._cmd = cmd
+        self._sf_path = sf_path
+        self._process: Optional[subprocess.Popen] = None
+        self._lock = threading.Lock()
+        self._ids = itertools.count(1)
+
+    @property
+    def sf_path(self) -> Optional[str]:
+        """SF installation path this daemon was started for."""
+        return self._sf_path
+
+    @property
+    def alive(self) -> bool:
+        """Whether the underlying process is running."""
+        return self._process is not None and self._process.poll() is None
+
+    def start(self) -> "ConfigBuilderDaemon":
+        """Launch the ConfigBuilder process if it isn't running.
+
+        Returns:
+            Self for method chaining.
+        """
+        if not self.alive:
+            self._process = subprocess.Popen(
+                self._cmd,
+                stdin=subprocess.PIPE,
+                stdout=subprocess.PIPE,
+                text=True,
+                encoding="utf-8",
+                bufsize=1,
+            )
+        return self
+
+    def request(self, args: List[str]) -> Dict[str, Any]:
+        """Send one command and wait for its response.
+
+        Args:
+            args: Command line arguments, exactly as passed to the CLI.
+
+        Returns:
+            Parsed JSON response for the command.
+
+        Raises:
+            SFConfigError: If the process is not running or exits mid-request.
+            SFParseError: If the response is not valid JSON.
+        """
+        with self._lock:
+            if not self.alive:
+                raise SFConfigError("ConfigBuilder daemon is not running")
+
+            request_id = next(self._ids)
+            line = json.dumps({"id": request_id, "args": list(args)})
+            try:
+                self._process.stdin.write(line + "\n")
+                self._process.stdin.flush()
+                response = self._process.stdout.readline()
+            except (BrokenPipeError, OSError) as e:
+                raise SFConfigError(f"ConfigBuilder daemon failed: {e}")
+
+            if not response:
+                code = self._process.poll()
+                raise SFConfigError(f"ConfigBuilder daemon exited unexpectedly (exit code {code})")
+
+            try:
+                data = json.loads(response)
+            except json.JSONDecodeError as e:
+                raise SFParseError(
+                    f"Invalid JSON from daemon: {response[:200]}...\n"
+                    f"Parse error: {e}"
+                )
+
+            if data.get("id") not in (None, request_id):
+                raise SFParseError(f"Daemon response id mismatch: {data.get('id')} != {request_id}")
+            data.pop("id", None)
+            return data
+
+    def close(self, timeout: float = 10) -> None:
+        """Ask the process to shut down and wait for it to exit.
+
+        Args:
+            timeout: Seconds to wait before killing the process.
+        """
+        process = self._process
+        self._process = None
+        if process is None:
+            return
+        try:
+            if process.poll() is None:
+                process.stdin.write(json.dumps({"command": "shutdown"}) + "\n")
+                process.stdin.flush()
+                process.stdin.close()
+                process.wait(timeout=timeout)
+        except (BrokenPipeError, OSError, subprocess.TimeoutExpired):
+            process.kill()
+            process.wait()
+        finally:
+            if process.stdout:
+                process.stdout.close()
+
+    def __enter__(self) -> "ConfigBuilderDaemon":
+        return self.start()
+
+    def __exit__(self, exc_type, exc, tb) -> None:
+        self.close()
+
+    def __repr__(self) -> str:
+        """Return developer-friendly representation."""
+        return f"<ConfigBuilderDaemon alive={self.alive}>"
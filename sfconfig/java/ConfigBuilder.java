@@ -2,43 +2,123 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
-
-import java.io.FileInputStream;
+import com.google.gson.Strictness;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.UnknownHostException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -121,264 +201,643 @@ public class ConfigBuilder {
     private static final String VIRTUAL_CUSTOM_SEARCHES = "mCustomSearchConfig.searches";
     private static final String VIRTUAL_CUSTOM_JAVASCRIPT = "mCustomJavaScriptConfig.javascript";
 
-    private static final int MAX_DEPTH = 10;
+    private static final int DEFAULT_MAX_DEPTH = 10;
+    private static final long MMAP_THRESHOLD = 1L << 20;
+    private static final boolean MMAP_READS = File.separatorChar == '/';
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_CONFIG_CACHE_MB = 256;
+    private static final int RETAINED_SIZE_FACTOR = 5;
+    private static final int DEFAULT_AGGREGATE_THRESHOLD = 50;
+    private static final int AGGREGATE_TOP_VALUES = 5;
+    private static final int MAX_LIST_EDITS = 2048;
+    private static final int DEFAULT_SCAN_TOLERANCE = 1;
+    private static final int MAX_SCAN_TOLERANCE = 2;
+    private static final int SCAN_LIST_PREVIEW = 20;
+    private static final int DEFAULT_SCOPE_CHUNK = 4096;
+    private static final int DEFAULT_MAX_ALTERNATION = 1000;
+    private static final long MAX_SUBSUMPTION_CHECKS = 50_000_000L;
+    private static final String[] SCOPE_RULES = {
+            "include", "default", "exclude", "not-included", "not-allowed-domain", "invalid-url"
+    };
+
+    private static final String LIST_DIFF_SET = "set";
+    private static final String LIST_DIFF_MULTISET = "multiset";
+    private static final String LIST_DIFF_EDITS = "edits";
+    private static final String LIST_DIFF_COUNTS = "counts";
+    private static final List<String> LIST_DIFF_MODES = Arrays.asList(
+            LIST_DIFF_SET, LIST_DIFF_MULTISET, LIST_DIFF_EDITS, LIST_DIFF_COUNTS);
+
+    private static final String CDS_TRAINING_HTML =
+            "<html><head><title>t</title></head><body><h1>Title</h1><p class=\"a\">One</p><p>Two</p></body></html>";
+
+    private static final String SF_JAR_NAME = "ScreamingFrogSEOSpider.jar";
+
+    private static final List<String> CLASSPATH_ROOT_CLASSES = Arrays.asList(
+            "com.google.gson.Gson",
+            "org.jsoup.Jsoup",
+            "seo.spider.config.custom.search.CustomSearchInfo",
+            "seo.spider.config.custom.search.SearchMode",
+            "seo.spider.config.custom.search.SearchDataType",
+            "seo.spider.config.custom.search.SearchScope",
+            "seo.spider.config.custom.javascript.CustomJavaScriptInfo",
+            "seo.spider.config.custom.javascript.id142006137",
+            "seo.spider.extraction.CustomExtractionInfo"
+    );
+
+    private static final List<String> HTTP_COMMANDS = Arrays.asList("inspect", "build", "diff", "test-extraction");
+
+    private static volatile Args launchArgs;
 
     public static void main(String[] args) {
         try {
             Args parsed = parseArgs(args);
+            parsed.stdin = true;
+            launchArgs = parsed;
             if (parsed.command == null) {
                 throw new CliException(ERROR_VALIDATION, 1, "No command provided", null);
             }
 
-            if ("inspect".equals(parsed.command)) {
-                handleInspect(parsed);
-            } else if ("build".equals(parsed.command)) {
-                handleBuild(parsed);
-            } else if ("diff".equals(parsed.command)) {
-                handleDiff(parsed);
-            } else if ("test-extraction".equals(parsed.command)) {
-                handleTestExtraction(parsed);
-            } else {
-                throw new CliException(ERROR_VALIDATION, 1, "Unknown command: " + parsed.command, null);
+            if ("serve".equals(parsed.command)) {
+                handleServe(parsed);
+                return;
+            }
+
+            if ("http".equals(parsed.command)) {
+                handleHttp(parsed);
+                return;
+            }
+
+            if ("batch".equals(parsed.command)) {
+                int failed = handleBatch(parsed);
+                if (failed > 0) {
+                    System.exit(1);
+                }
+                return;
+            }
+
+            if ("diff-many".equals(parsed.command)) {
+                int failed = handleDiffMany(parsed);
+                if (failed > 0) {
+                    System.exit(1);
+                }
+                return;
+            }
+
+            if ("apply-many".equals(parsed.command)) {
+                int failed = handleApplyMany(parsed);
+                if (failed > 0) {
+                    System.exit(1);
+                }
+                return;
+            }
+
+            if ("scope".equals(parsed.command)) {
+                handleScope(parsed);
+                return;
+            }
+
+            if ("fan-out".equals(parsed.command)) {
+                int failed = handleFanOut(parsed);
+                if (failed > 0) {
+                    System.exit(1);
+                }
+                return;
             }
+
+            writeJson(execute(parsed));
         } catch (CliException ex) {
             writeError(ex);
             System.exit(ex.exitCode);
         } catch (Exception ex) {
-            Map<String, Object> details = new LinkedHashMap<>();
-            details.put("exception", ex.getClass().getName());
-            details.put("message", ex.getMessage());
-            writeError(new CliException(ERROR_UNKNOWN, 99, "Unexpected error", details));
-            System.exit(99);
+            CliException unexpected = unexpectedError(ex);
+            writeError(unexpected);
+            System.exit(unexpected.exitCode);
         }
     }
 
-    private static void handleInspect(Args args) throws Exception {
-        Path configPath = validatePath(requireArg(args, "config"), true);
-        String prefix = args.options.get("prefix");
-
-        Object root = readConfig(configPath);
-        String configVersion = readConfigVersion(root);
-        String sfVersion = readSfVersion();
-
-        Map<String, FieldInfo> fieldMap = new LinkedHashMap<>();
-        collectFields(root, "", fieldMap, new HashSet<>(), 0);
-        addVirtualFields(root, fieldMap);
+    private static Map<String, Object> execute(Args parsed) throws Exception {
+        if ("inspect".equals(parsed.command)) {
+            return handleInspect(parsed);
+        }
+        if ("build".equals(parsed.command)) {
+            return handleBuild(parsed);
+        }
+        if ("diff".equals(parsed.command)) {
+            return handleDiff(parsed);
+        }
+        if ("test-extraction".equals(parsed.command)) {
+            return handleTestExtraction(parsed);
+        }
+        if ("create-cds-archive".equals(parsed.command)) {
+            return handleCreateCdsArchive(parsed);
+        }
+        if ("cds-training".equals(parsed.command)) {
+            return handleCdsTraining(parsed);
+        }
+        if ("resolve-classpath".equals(parsed.command)) {
+            return handleResolveClasspath(parsed);
+        }
+        if ("schema".equals(parsed.command)) {
+            return handleSchema(parsed);
+        }
+        if ("scan".equals(parsed.command)) {
+            return handleScan(parsed);
+        }
+        if ("optimize-patterns".equals(parsed.command)) {
+            return handleOptimizePatterns(parsed);
+        }
+        if ("store-put".equals(parsed.command)) {
+            return handleStorePut(parsed);
+        }
+        if ("store-get".equals(parsed.command)) {
+            return handleStoreGet(parsed);
+        }
+        if ("store-list".equals(parsed.command)) {
+            return handleStoreList(parsed);
+        }
+        throw new CliException(ERROR_VALIDATION, 1, "Unknown command: " + parsed.command, null);
+    }
 
-        List<Map<String, Object>> fields = new ArrayList<>();
-        for (Map.Entry<String, FieldInfo> entry : fieldMap.entrySet()) {
-            String path = entry.getKey();
-            if (prefix != null && !path.startsWith(prefix)) {
+    private static void handleServe(Args args) throws Exception {
+        ConfigCache cache = new ConfigCache(configCacheBytes(args));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
                 continue;
             }
 
-            FieldInfo info = entry.getValue();
-            Map<String, Object> fieldJson = new LinkedHashMap<>();
-            fieldJson.put("path", path);
-            fieldJson.put("type", info.type);
-            fieldJson.put("value", maskValueIfNeeded(path, info.value));
-            if (info.enumOptions != null) {
-                fieldJson.put("enumOptions", info.enumOptions);
+            JsonElement id = null;
+            Map<String, Object> response;
+            boolean shutdown = false;
+            try {
+                JsonObject request = parseServeRequest(line);
+                id = request.get("id");
+                Args parsed = argsFromRequest(request);
+                if ("shutdown".equals(parsed.command)) {
+                    response = new LinkedHashMap<>();
+                    response.put("success", true);
+                    shutdown = true;
+                } else {
+                    parsed.configs = cache;
+                    response = execute(parsed);
+                }
+            } catch (CliException ex) {
+                response = errorPayload(ex);
+            } catch (Exception ex) {
+                response = errorPayload(unexpectedError(ex));
             }
-            fieldJson.put("editable", isEditable(path));
-            if (info.length != null) {
-                fieldJson.put("length", info.length);
+
+            Map<String, Object> tagged = new LinkedHashMap<>();
+            if (id != null && !id.isJsonNull()) {
+                tagged.put("id", id);
             }
-            fields.add(fieldJson);
-        }
+            tagged.putAll(response);
+            writeJson(writer, tagged);
+            writer.write('\n');
+            writer.flush();
 
-        Map<String, Object> result = new LinkedHashMap<>();
-        result.put("configVersion", configVersion);
-        result.put("sfVersion", sfVersion);
-        String warning = buildVersionWarning(configVersion, sfVersion);
-        if (warning != null) {
-            result.put("warning", warning);
+            if (shutdown) {
+                break;
+            }
         }
-        result.put("fields", fields);
-        writeJson(result);
     }
 
-    private static void handleBuild(Args args) throws Exception {
-        Path templatePath = validatePath(requireArg(args, "template"), true);
-        Path outputPath = validatePath(requireArg(args, "output"), false);
-        String patchJson = resolvePatchesArg(args);
-        boolean dryRun = args.flags.contains("dry-run");
-
-        Object root = readConfig(templatePath);
-        String configVersion = readConfigVersion(root);
-        String sfVersion = readSfVersion();
-
-        JsonObject patches;
+    private static JsonObject parseServeRequest(String line) throws CliException {
+        JsonElement element;
         try {
-            patches = JsonParser.parseString(patchJson).getAsJsonObject();
+            element = JsonParser.parseString(line);
         } catch (Exception ex) {
-            throw new CliException(ERROR_VALIDATION, 1, "Invalid JSON for --patches", null);
+            throw new CliException(ERROR_VALIDATION, 1, "Invalid JSON request", null);
         }
+        if (element == null || !element.isJsonObject()) {
+            throw new CliException(ERROR_VALIDATION, 1, "Request must be a JSON object", null);
+        }
+        return element.getAsJsonObject();
+    }
 
-        List<Map<String, Object>> changes = new ArrayList<>();
-        List<String> warnings = new ArrayList<>();
-
-        if (patches.has("extractions")) {
-            JsonElement extractionEl = patches.get("extractions");
-            if (!extractionEl.isJsonArray()) {
-                throw new CliException(ERROR_VALIDATION, 1, "extractions must be an array", null);
-            }
-            List<Map<String, Object>> before = extractRules(root);
-            applyExtractionPatches(root, extractionEl.getAsJsonArray(), warnings);
-            List<Map<String, Object>> after = extractRules(root);
-            if (!Objects.equals(before, after)) {
-                Map<String, Object> change = new LinkedHashMap<>();
-                change.put("path", VIRTUAL_EXTRACTIONS);
-                change.put("before", before);
-                change.put("after", after);
-                changes.add(change);
+    private static Args argsFromRequest(JsonObject request) throws CliException {
+        JsonElement argsEl = request.get("args");
+        if (argsEl != null && !argsEl.isJsonNull()) {
+            if (!argsEl.isJsonArray()) {
+                throw new CliException(ERROR_VALIDATION, 1, "Request args must be an array", null);
             }
+            List<String> argv = jsonArrayToList(argsEl.getAsJsonArray());
+            return parseArgs(argv.toArray(new String[0]));
+        }
+
+        String command = getJsonString(request, "command");
+        if (command == null || command.trim().isEmpty()) {
+            throw new CliException(ERROR_VALIDATION, 1, "Request missing 'command' or 'args'", null);
+        }
+        if ("shutdown".equals(command)) {
+            Args parsed = new Args();
+            parsed.command = command;
+            return parsed;
         }
 
-        if (patches.has("custom_searches")) {
-            JsonElement searchEl = patches.get("custom_searches");
-            if (!searchEl.isJsonArray()) {
-                throw new CliException(ERROR_VALIDATION, 1, "custom_searches must be an array", null);
+        List<String> argv = new ArrayList<>();
+        argv.add("--" + command);
+        for (Map.Entry<String, JsonElement> entry : request.entrySet()) {
+            String key = entry.getKey();
+            JsonElement value = entry.getValue();
+            if ("id".equals(key) || "command".equals(key) || value == null || value.isJsonNull()) {
+                continue;
             }
-            List<Map<String, Object>> before = extractCustomSearches(root);
-            applyCustomSearchPatches(root, searchEl.getAsJsonArray(), warnings);
-            List<Map<String, Object>> after = extractCustomSearches(root);
-            if (!Objects.equals(before, after)) {
-                Map<String, Object> change = new LinkedHashMap<>();
-                change.put("path", VIRTUAL_CUSTOM_SEARCHES);
-                change.put("before", before);
-                change.put("after", after);
-                changes.add(change);
+            if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isBoolean()) {
+                if (value.getAsBoolean()) {
+                    argv.add("--" + key);
+                }
+                continue;
             }
+            argv.add("--" + key);
+            argv.add(value.isJsonPrimitive() ? value.getAsString() : value.toString());
+        }
+        return parseArgs(argv.toArray(new String[0]));
+    }
+
+    private static void handleHttp(Args args) throws Exception {
+        int port = parseIntOption(args, "port", 8765, 0, 65535);
+        int maxConcurrency = parseIntOption(args, "max-concurrency", Runtime.getRuntime().availableProcessors(), 1, 10000);
+        long queueTimeoutMs = parseIntOption(args, "queue-timeout", 30000, 0, Integer.MAX_VALUE);
+        ConfigCache cache = new ConfigCache(configCacheBytes(args));
+
+        HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to bind HTTP server on port " + port, null);
         }
 
-        if (patches.has("custom_javascript")) {
-            JsonElement jsEl = patches.get("custom_javascript");
-            if (!jsEl.isJsonArray()) {
-                throw new CliException(ERROR_VALIDATION, 1, "custom_javascript must be an array", null);
+        Semaphore permits = new Semaphore(maxConcurrency, true);
+        Map<String, EndpointMetrics> metrics = new LinkedHashMap<>();
+        long startedNanos = System.nanoTime();
+        for (String command : HTTP_COMMANDS) {
+            EndpointMetrics endpoint = new EndpointMetrics();
+            metrics.put(command, endpoint);
+            server.createContext("/" + command, exchange -> handleHttpCommand(exchange, command, endpoint, permits, queueTimeoutMs, cache));
+        }
+        server.createContext("/metrics", exchange -> {
+            if (rejectHttpRequest(exchange, "metrics", null)) {
+                return;
             }
-            List<Map<String, Object>> before = extractCustomJavaScript(root);
-            applyCustomJavaScriptPatches(root, jsEl.getAsJsonArray(), warnings);
-            List<Map<String, Object>> after = extractCustomJavaScript(root);
-            if (!Objects.equals(before, after)) {
-                Map<String, Object> change = new LinkedHashMap<>();
-                change.put("path", VIRTUAL_CUSTOM_JAVASCRIPT);
-                change.put("before", before);
-                change.put("after", after);
-                changes.add(change);
+            Map<String, Object> body = new LinkedHashMap<>();
+            double uptimeSeconds = (System.nanoTime() - startedNanos) / 1_000_000_000.0;
+            body.put("uptimeSeconds", uptimeSeconds);
+            body.put("maxConcurrency", maxConcurrency);
+            body.put("availablePermits", permits.availablePermits());
+            Map<String, Object> endpoints = new LinkedHashMap<>();
+            for (Map.Entry<String, EndpointMetrics> entry : metrics.entrySet()) {
+                endpoints.put("/" + entry.getKey(), entry.getValue().snapshot(uptimeSeconds));
+            }
+            body.put("endpoints", endpoints);
+            body.put("configCache", cache.stats());
+            sendHttpJson(exchange, 200, body);
+        });
+        server.createContext("/shutdown", exchange -> {
+            if (rejectHttpRequest(exchange, "shutdown", "POST")) {
+                return;
             }
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("success", true);
+            sendHttpJson(exchange, 200, body);
+            new Thread(() -> server.stop(0)).start();
+        });
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+
+        Map<String, Object> started = new LinkedHashMap<>();
+        started.put("success", true);
+        started.put("url", "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+        started.put("port", server.getAddress().getPort());
+        started.put("maxConcurrency", maxConcurrency);
+        writeJson(started);
+        System.out.flush();
+    }
+
+    private static void handleHttpCommand(
+            HttpExchange exchange,
+            String command,
+            EndpointMetrics endpoint,
+            Semaphore permits,
+            long queueTimeoutMs,
+            ConfigCache cache
+    ) throws IOException {
+        if (rejectHttpRequest(exchange, command, "POST")) {
+            return;
         }
 
-        for (Map.Entry<String, JsonElement> entry : patches.entrySet()) {
-            String path = entry.getKey();
-            if ("extractions".equals(path) || "custom_searches".equals(path) || "custom_javascript".equals(path)) {
-                continue;
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            endpoint.rejected.increment();
+            Map<String, Object> body = errorPayload(new CliException(ERROR_UNKNOWN, 99, "Server busy", null));
+            sendHttpJson(exchange, 503, body);
+            return;
+        }
+
+        endpoint.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        int status = 200;
+        Map<String, Object> response;
+        try {
+            String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            JsonObject request = requestBody.trim().isEmpty() ? new JsonObject() : parseServeRequest(requestBody);
+            request.addProperty("command", command);
+            Args parsed = argsFromRequest(request);
+            if (!command.equals(parsed.command)) {
+                throw new CliException(ERROR_VALIDATION, 1, "Request args must run " + command, null);
             }
+            parsed.configs = cache;
+            response = execute(parsed);
+        } catch (CliException ex) {
+            status = httpStatusFor(ex);
+            response = errorPayload(ex);
+        } catch (Exception ex) {
+            CliException unexpected = unexpectedError(ex);
+            status = httpStatusFor(unexpected);
+            response = errorPayload(unexpected);
+        } finally {
+            permits.release();
+        }
 
-            if (!isEditable(path)) {
-                Map<String, Object> details = new LinkedHashMap<>();
-                details.put("allowedFields", allowedFieldsList());
-                throw new CliException(ERROR_VALIDATION, 1, "Field not allowed: " + path, details);
+        try {
+            sendHttpJson(exchange, status, response);
+        } finally {
+            endpoint.record(System.nanoTime() - start, status >= 400);
+            endpoint.inFlight.decrementAndGet();
+        }
+    }
+
+    private static int httpStatusFor(CliException ex) {
+        if (ERROR_VALIDATION.equals(ex.errorType)) {
+            return 400;
+        }
+        if (ERROR_PARSE.equals(ex.errorType)) {
+            return 422;
+        }
+        return 500;
+    }
+
+    private static boolean rejectHttpRequest(HttpExchange exchange, String endpoint, String method) throws IOException {
+        int status = 0;
+        String message = null;
+        Headers headers = exchange.getRequestHeaders();
+        String origin = headers.getFirst("Origin");
+        if (!isLoopbackHost(headers.getFirst("Host"))) {
+            status = 403;
+            message = "Host must be a loopback address";
+        } else if (origin != null && !isLoopbackHost(originHost(origin))) {
+            status = 403;
+            message = "Cross-origin requests are not allowed";
+        } else if (method != null && !method.equalsIgnoreCase(exchange.getRequestMethod())) {
+            status = 405;
+            message = "Use " + method + " for /" + endpoint;
+        } else if (method != null && !isJsonContentType(headers.getFirst("Content-Type"))) {
+            status = 415;
+            message = "Content-Type must be application/json";
+        }
+        if (message == null) {
+            return false;
+        }
+        exchange.getRequestBody().close();
+        sendHttpJson(exchange, status, errorPayload(new CliException(ERROR_VALIDATION, 1, message, null)));
+        return true;
+    }
+
+    private static boolean isJsonContentType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String mediaType = semicolon < 0 ? contentType : contentType.substring(0, semicolon);
+        return "application/json".equalsIgnoreCase(mediaType.trim());
+    }
+
+    private static String originHost(String origin) {
+        try {
+            return new URI(origin).getHost();
+        } catch (URISyntaxException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isLoopbackHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        String name = host.trim();
+        if (name.startsWith("[")) {
+            int end = name.indexOf(']');
+            name = end < 0 ? name.substring(1) : name.substring(1, end);
+        } else if (name.indexOf(':') == name.lastIndexOf(':') && name.indexOf(':') >= 0) {
+            name = name.substring(0, name.indexOf(':'));
+        }
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if ("localhost".equalsIgnoreCase(name)) {
+            return true;
+        }
+        if (!name.matches("[0-9]+(\\.[0-9]+){3}") && !name.matches("[0-9A-Fa-f:.]*:[0-9A-Fa-f:.]*")) {
+            return false;
+        }
+        try {
+            return InetAddress.getByName(name).isLoopbackAddress();
+        } catch (UnknownHostException ex) {
+            return false;
+        }
+    }
+
+    private static void sendHttpJson(HttpExchange exchange, int status, Object payload) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, 0);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+            writeJson(writer, payload);
+        }
+    }
+
+    private static long configCacheBytes(Args args) throws CliException {
+        return parseIntOption(args, "config-cache-mb", DEFAULT_CONFIG_CACHE_MB, 0, 1 << 20) * 1024L * 1024L;
+    }
+
+    private static int parseIntOption(Args args, String key, int defaultValue, int min, int max) throws CliException {
+        String raw = args.options.get(key);
+        if (raw == null || raw.trim().isEmpty()) {
+            return defaultValue;
+        }
+        int value;
+        try {
+            value = Integer.parseInt(raw.trim());
+        } catch (NumberFormatException ex) {
+            throw new CliException(ERROR_VALIDATION, 1, "Invalid integer for --" + key + ": " + raw, null);
+        }
+        if (value < min || value > max) {
+            throw new CliException(ERROR_VALIDATION, 1, "--" + key + " must be between " + min + " and " + max, null);
+        }
+        return value;
+    }
+
+    private static int handleBatch(Args args) throws Exception {
+        String source = requireArg(args, "batch");
+        boolean stopOnError = args.flags.contains("stop-on-error");
+
+        Reader input;
+        if ("-".equals(source)) {
+            input = new InputStreamReader(System.in, StandardCharsets.UTF_8);
+        } else {
+            Path batchPath = validatePath(source, true);
+            try {
+                input = Files.newBufferedReader(batchPath, StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to read batch file: " + batchPath, null);
             }
+        }
 
-            if ("mCrawlConfig.mMaxUrls".equals(path)) {
-                Integer before = getMaxUrls(root);
-                if (before != null) {
-                    int after = (Integer) coerceValue(Integer.class, entry.getValue(), path);
-                    setMaxUrls(root, after);
-                    if (!Objects.equals(before, after)) {
-                        Map<String, Object> change = new LinkedHashMap<>();
-                        change.put("path", path);
-                        change.put("before", before);
-                        change.put("after", after);
-                        changes.add(change);
-                    }
-                    continue;
-                }
+        ConfigCache cache = new ConfigCache(configCacheBytes(args));
+        int index = 0;
+        int failed = 0;
+        try (JsonReader reader = new JsonReader(new BufferedReader(input))) {
+            reader.setStrictness(Strictness.LENIENT);
+            boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+            if (array) {
+                reader.beginArray();
             }
+            while (reader.hasNext() && reader.peek() != JsonToken.END_DOCUMENT) {
+                JsonElement opEl;
+                try {
+                    opEl = JsonParser.parseReader(reader);
+                } catch (Exception ex) {
+                    throw new CliException(ERROR_VALIDATION, 1, "Invalid JSON in batch at operation " + index, null);
+                }
 
-            if ("mCrawlConfig.mMaxDepth".equals(path)) {
-                Integer before = getMaxDepth(root);
-                if (before != null) {
-                    int after = (Integer) coerceValue(Integer.class, entry.getValue(), path);
-                    setMaxDepth(root, after);
-                    if (!Objects.equals(before, after)) {
-                        Map<String, Object> change = new LinkedHashMap<>();
-                        change.put("path", path);
-                        change.put("before", before);
-                        change.put("after", after);
-                        changes.add(change);
+                JsonElement id = null;
+                String command = null;
+                Map<String, Object> response;
+                try {
+                    if (!opEl.isJsonObject()) {
+                        throw new CliException(ERROR_VALIDATION, 1, "Batch operation must be a JSON object", null);
                     }
-                    continue;
+                    JsonObject op = opEl.getAsJsonObject();
+                    id = op.get("id");
+                    Args parsed = argsFromRequest(op);
+                    command = parsed.command;
+                    if (!HTTP_COMMANDS.contains(command)) {
+                        throw new CliException(ERROR_VALIDATION, 1, "Unsupported batch command: " + command, null);
+                    }
+                    parsed.configs = cache;
+                    response = execute(parsed);
+                } catch (CliException ex) {
+                    response = errorPayload(ex);
+                } catch (Exception ex) {
+                    response = errorPayload(unexpectedError(ex));
                 }
-            }
 
-            if ("mCrawlConfig.mRenderingMode".equals(path)) {
-                Object crawlConfig = getNestedField(root, "mCrawlConfig");
-                if (crawlConfig != null
-                        && !fieldExists(crawlConfig, "mRenderingMode")
-                        && fieldExists(crawlConfig, "mCrawlerMode")) {
-                    String before = getRenderingMode(root);
-                    String input = (String) coerceValue(String.class, entry.getValue(), path);
-                    setRenderingMode(root, input);
-                    String after = getRenderingMode(root);
-                    if (!Objects.equals(before, after)) {
-                        Map<String, Object> change = new LinkedHashMap<>();
-                        change.put("path", path);
-                        change.put("before", before);
-                        change.put("after", after);
-                        changes.add(change);
+                Map<String, Object> tagged = new LinkedHashMap<>();
+                tagged.put("index", index);
+                if (id != null && !id.isJsonNull()) {
+                    tagged.put("id", id);
+                }
+                tagged.put("command", command);
+                tagged.putAll(response);
+                writeJson(tagged);
+                index++;
+
+                if (Boolean.FALSE.equals(response.get("success"))) {
+                    failed++;
+                    if (stopOnError) {
+                        break;
                     }
-                    continue;
                 }
             }
+        }
+        return failed;
+    }
 
-            if (isVirtualExcludeField(path)) {
-                List<String> before = getExcludeList(root);
-                List<String> after = applyListPatch(before, entry.getValue(), warnings);
-                setExcludeList(root, after);
+    private static Map<String, Object> handleInspect(Args args) throws Exception {
+        Path configPath = validatePath(requireArg(args, "config"), true);
+        List<String> prefixes = parsePrefixes(args.options.get("prefix"));
+        int maxDepth = parseIntOption(args, "max-depth", DEFAULT_MAX_DEPTH, 0, 1000);
 
-                if (!Objects.equals(before, after)) {
-                    Map<String, Object> change = new LinkedHashMap<>();
-                    change.put("path", path);
-                    change.put("before", before);
-                    change.put("after", after);
-                    changes.add(change);
-                }
-                continue;
-            }
+        Object root = loadConfig(args, configPath, false);
+        String configVersion = readConfigVersion(root);
+        String sfVersion = readSfVersion();
 
-            Object target = resolvePath(root, path);
-            Field targetField = findField(target.getClass(), leafName(path));
-            targetField.setAccessible(true);
-            Object before = targetField.get(target);
+        ConfigSchema schema = ConfigSchema.current();
+        Map<String, FieldInfo> fieldMap = new LinkedHashMap<>();
+        collectFields(root, fieldMap, prefixes, maxDepth, schema);
+        addVirtualFields(root, fieldMap);
+        if (!schema.hasFields() && prefixes == null && maxDepth == DEFAULT_MAX_DEPTH) {
+            schema.capture(root, fieldMap, sfVersion);
+        }
+        schema.saveIfDirty();
 
-            if (LIST_ALLOWLIST.contains(path)) {
-                List<String> beforeList = toStringList(before);
-                List<String> afterList = applyListPatch(beforeList, entry.getValue(), warnings);
-                List<String> safeList = afterList == null ? new ArrayList<>() : afterList;
-                targetField.set(target, safeList);
-                Map<String, Object> change = new LinkedHashMap<>();
-                change.put("path", path);
-                change.put("before", beforeList);
-                change.put("after", afterList);
-                changes.add(change);
-            } else {
-                Object coerced = coerceValue(targetField.getType(), entry.getValue(), path);
-                targetField.set(target, coerced);
-                Object after = targetField.get(target);
-                if (!Objects.equals(before, after)) {
-                    Map<String, Object> change = new LinkedHashMap<>();
-                    change.put("path", path);
-                    change.put("before", toJsonValue(before, path));
-                    change.put("after", toJsonValue(after, path));
-                    changes.add(change);
+        JsonStreamable fields = out -> {
+            out.beginArray();
+            for (Map.Entry<String, FieldInfo> entry : fieldMap.entrySet()) {
+                String path = entry.getKey();
+                if (!matchesPrefix(path, prefixes)) {
+                    continue;
+                }
+
+                FieldInfo info = entry.getValue();
+                out.beginObject();
+                out.name("path").value(path);
+                out.name("type").value(info.type);
+                out.name("value");
+                writeJsonValue(out, maskValueIfNeeded(path, info.value));
+                if (info.enumOptions != null) {
+                    out.name("enumOptions");
+                    writeJsonValue(out, info.enumOptions);
+                }
+                out.name("editable").value(isEditable(path));
+                if (info.length != null) {
+                    out.name("length").value(info.length);
                 }
+                out.endObject();
             }
+            out.endArray();
+        };
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("configVersion", configVersion);
+        result.put("sfVersion", sfVersion);
+        String warning = buildVersionWarning(configVersion, sfVersion);
+        if (warning != null) {
+            result.put("warning", warning);
+        }
+        result.put("fields", fields);
+        if (args.flags.contains("subtree-hashes")) {
+            result.put("subtreeHashes", collectSubtreeHashes(root, merkleIndex(args, root), prefixes, maxDepth));
         }
+        return result;
+    }
+
+    private static Map<String, Object> handleBuild(Args args) throws Exception {
+        Path templatePath = validatePath(requireArg(args, "template"), true);
+        Path outputPath = validatePath(requireArg(args, "output"), false);
+        boolean dryRun = args.flags.contains("dry-run");
+        PatchPlan plan = resolvePatchPlan(args);
+
+        Object root = loadConfig(args, templatePath, true);
+        String configVersion = readConfigVersion(root);
+        String sfVersion = readSfVersion();
+
+        List<Map<String, Object>> changes = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+        plan.apply(root, changes, warnings);
 
         if (!dryRun) {
-            writeConfig(outputPath, root);
+            ByteArrayOutputStream image = writeConfig(outputPath, root, args.io);
+            if (args.configs != null) {
+                args.configs.written(outputPath, image.toByteArray(), root);
+            }
         }
 
         Map<String, Object> result = new LinkedHashMap<>();
@@ -392,36 +851,358 @@ public class ConfigBuilder {
         }
         result.put("changes", changes);
         result.put("warnings", warnings);
-        writeJson(result);
+        result.put("io", args.io.toJson());
+        return result;
     }
 
-    private static void handleDiff(Args args) throws Exception {
-        Path configA = validatePath(requireArg(args, "config-a"), true);
-        Path configB = validatePath(requireArg(args, "config-b"), true);
-        String prefix = args.options.get("prefix");
+    private static void applyPatches(Object root, JsonObject patches, List<Map<String, Object>> changes,
+                                     List<String> warnings) throws Exception {
+        PatchPlan.compile(patches).apply(root, changes, warnings);
+    }
 
-        Object rootA = readConfig(configA);
-        Object rootB = readConfig(configB);
+    private static int handleApplyMany(Args args) throws Exception {
+        String source = requireArg(args, "targets");
+        boolean dryRun = args.flags.contains("dry-run");
+        Path outputDir = dryRun ? null : validatePath(requireArg(args, "output-dir"), false);
+        int threads = parseIntOption(args, "threads", Runtime.getRuntime().availableProcessors(), 1, 1024);
+        if ("-".equals(source) && "-".equals(args.options.get("patches-file"))) {
+            throw new CliException(ERROR_VALIDATION, 1, "--targets and --patches-file cannot both read stdin", null);
+        }
+        PatchPlan plan = resolvePatchPlan(args);
+        List<String> targets = readTargetList(source);
 
-        String versionA = readConfigVersion(rootA);
-        String versionB = readConfigVersion(rootB);
+        if (outputDir != null) {
+            try {
+                Files.createDirectories(outputDir);
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to create output directory: " + outputDir, null);
+            }
+        }
+        String sfVersion = readSfVersion();
+
+        boolean[] duplicate = new boolean[targets.size()];
+        Set<Path> outputs = new HashSet<>();
+        for (int i = 0; i < targets.size(); i++) {
+            duplicate[i] = outputDir != null && !outputs.add(Paths.get(targets.get(i)).getFileName());
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, System.out.charset()));
+        AtomicInteger applied = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, targets.size()).parallel().forEach(index -> {
+                Map<String, Object> record = new LinkedHashMap<>();
+                record.put("index", index);
+                record.put("template", targets.get(index));
+                try {
+                    Path templatePath = validatePath(targets.get(index), true);
+                    Path outputPath = outputDir == null ? null : outputDir.resolve(templatePath.getFileName());
+                    if (duplicate[index]) {
+                        throw new CliException(ERROR_VALIDATION, 1, "Duplicate output path: " + outputPath, null);
+                    }
+                    IoStats io = new IoStats();
+                    Object root = readConfig(templatePath, io);
+                    String configVersion = readConfigVersion(root);
+                    List<Map<String, Object>> changes = new ArrayList<>();
+                    List<String> warnings = new ArrayList<>();
+                    plan.apply(root, changes, warnings);
+                    if (outputPath != null) {
+                        writeConfig(outputPath, root, io);
+                    }
+                    String warning = buildVersionWarning(configVersion, sfVersion);
+                    if (warning != null) {
+                        warnings.add(warning);
+                    }
+                    record.put("success", true);
+                    record.put("outputPath", outputPath == null ? null : outputPath.toString());
+                    record.put("configVersion", configVersion);
+                    record.put("changes", changes);
+                    record.put("warnings", warnings);
+                    record.put("io", io.toJson());
+                    applied.incrementAndGet();
+                } catch (CliException ex) {
+                    record.putAll(errorPayload(ex));
+                    failed.incrementAndGet();
+                } catch (Exception ex) {
+                    record.putAll(errorPayload(unexpectedError(ex)));
+                    failed.incrementAndGet();
+                }
+                try {
+                    synchronized (writer) {
+                        writeJson(writer, record);
+                        writer.write(System.lineSeparator());
+                        writer.flush();
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            })).get();
+        } finally {
+            pool.shutdown();
+        }
+
+        Map<String, Object> counts = new LinkedHashMap<>();
+        counts.put("sfVersion", sfVersion);
+        counts.put("targets", targets.size());
+        counts.put("applied", applied.get());
+        counts.put("failed", failed.get());
+        counts.put("steps", plan.size());
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("summary", counts);
+        writeJson(writer, summary);
+        writer.write(System.lineSeparator());
+        writer.flush();
+        return failed.get();
+    }
+
+    private static List<String> readTargetList(String source) throws CliException {
+        List<String> targets = new ArrayList<>();
+        try (BufferedReader reader = "-".equals(source)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(validatePath(source, true), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    targets.add(line.trim());
+                }
+            }
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to read targets: " + source, null);
+        }
+        return targets;
+    }
+
+    private static int handleFanOut(Args args) throws Exception {
+        Path templatePath = validatePath(requireArg(args, "template"), true);
+        String source = requireArg(args, "fan-out");
+        int threads = parseIntOption(args, "threads", Runtime.getRuntime().availableProcessors(), 1, 1024);
+        boolean stopOnError = args.flags.contains("stop-on-error");
+
+        BufferedReader input;
+        if ("-".equals(source)) {
+            input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        } else {
+            Path jobsPath = validatePath(source, true);
+            try {
+                input = Files.newBufferedReader(jobsPath, StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to read jobs file: " + jobsPath, null);
+            }
+        }
+
+        byte[] template;
+        try {
+            template = readConfigBytes(templatePath, args.io);
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to read config: " + templatePath, null);
+        }
+        Object first = deserializeConfig(template, templatePath);
+        String configVersion = readConfigVersion(first);
+        String sfVersion = readSfVersion();
+        String versionWarning = buildVersionWarning(configVersion, sfVersion);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, System.out.charset()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(threads * 2);
+        AtomicInteger built = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicBoolean stopped = new AtomicBoolean();
+        Set<Path> outputs = new HashSet<>();
+        int index = 0;
+        try (BufferedReader reader = input) {
+            String line;
+            while (!stopped.get() && (line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                int jobIndex = index++;
+                JsonObject job = parseFanOutJob(line);
+                Path output = fanOutOutput(job);
+                boolean duplicate = output != null && !outputs.add(output);
+                inFlight.acquire();
+                pool.execute(() -> {
+                    Map<String, Object> tagged = new LinkedHashMap<>();
+                    tagged.put("index", jobIndex);
+                    try {
+                        tagged.putAll(runFanOutJob(job, duplicate, template, templatePath, configVersion, sfVersion, versionWarning, tagged));
+                    } catch (CliException ex) {
+                        tagged.putAll(errorPayload(ex));
+                    } catch (Exception ex) {
+                        tagged.putAll(errorPayload(unexpectedError(ex)));
+                    }
+                    if (Boolean.FALSE.equals(tagged.get("success"))) {
+                        failed.incrementAndGet();
+                        if (stopOnError) {
+                            stopped.set(true);
+                        }
+                    } else {
+                        built.incrementAndGet();
+                    }
+                    try {
+                        synchronized (writer) {
+                            writeJson(writer, tagged);
+                            writer.write(System.lineSeparator());
+                            writer.flush();
+                        }
+                    } catch (IOException ex) {
+                        stopped.set(true);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        Map<String, Object> counts = new LinkedHashMap<>();
+        counts.put("sfVersion", sfVersion);
+        counts.put("jobs", index);
+        counts.put("built", built.get());
+        counts.put("failed", failed.get());
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("summary", counts);
+        writeJson(writer, summary);
+        writer.write(System.lineSeparator());
+        writer.flush();
+        return failed.get();
+    }
+
+    private static JsonObject parseFanOutJob(String line) {
+        try {
+            return JsonParser.parseString(line).getAsJsonObject();
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static Path fanOutOutput(JsonObject job) {
+        if (job == null || !job.has("output") || !job.get("output").isJsonPrimitive()) {
+            return null;
+        }
+        try {
+            return validatePath(job.get("output").getAsString(), false);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static Map<String, Object> runFanOutJob(
+            JsonObject job,
+            boolean duplicate,
+            byte[] template,
+            Path templatePath,
+            String configVersion,
+            String sfVersion,
+            String versionWarning,
+            Map<String, Object> tagged
+    ) throws Exception {
+        if (job == null) {
+            throw new CliException(ERROR_VALIDATION, 1, "Invalid JSON for fan-out job", null);
+        }
+        if (job.has("id") && !job.get("id").isJsonNull()) {
+            tagged.put("id", job.get("id"));
+        }
+        if (!job.has("output") || !job.get("output").isJsonPrimitive()) {
+            throw new CliException(ERROR_VALIDATION, 1, "Missing required argument: output", null);
+        }
+        Path outputPath = validatePath(job.get("output").getAsString(), false);
+        tagged.put("outputPath", outputPath.toString());
+        if (duplicate) {
+            throw new CliException(ERROR_VALIDATION, 1, "Duplicate output path: " + outputPath, null);
+        }
+
+        JsonElement patchEl = job.get("patches");
+        JsonObject patches;
+        try {
+            if (patchEl != null && patchEl.isJsonPrimitive()) {
+                patchEl = JsonParser.parseString(patchEl.getAsString());
+            }
+            patches = patchEl == null ? new JsonObject() : patchEl.getAsJsonObject();
+        } catch (Exception ex) {
+            throw new CliException(ERROR_VALIDATION, 1, "Invalid JSON for patches", null);
+        }
+
+        Object root = deserializeConfig(template, templatePath);
+        List<Map<String, Object>> changes = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+        applyPatches(root, patches, changes, warnings);
+
+        IoStats io = new IoStats();
+        writeConfig(outputPath, root, io);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        result.put("configVersion", configVersion);
+        result.put("sfVersion", sfVersion);
+        if (versionWarning != null) {
+            warnings.add(versionWarning);
+        }
+        result.put("changes", changes);
+        result.put("warnings", warnings);
+        result.put("io", io.toJson());
+        return result;
+    }
+
+    private static Map<String, Object> handleDiff(Args args) throws Exception {
+        Path configA = validatePath(requireArg(args, "config-a"), true);
+        Path configB = validatePath(requireArg(args, "config-b"), true);
+        List<String> prefixes = parsePrefixes(args.options.get("prefix"));
+        int maxDepth = parseIntOption(args, "max-depth", DEFAULT_MAX_DEPTH, 0, 1000);
+        String listMode = parseListDiffMode(args);
+
+        Object rootA = loadConfig(args, configA, false);
+        Object rootB = loadConfig(args, configB, false);
+
+        String versionA = readConfigVersion(rootA);
+        String versionB = readConfigVersion(rootB);
         String sfVersion = readSfVersion();
 
+        Set<String> identical = identicalSubtrees(rootA, merkleIndex(args, rootA), rootB, merkleIndex(args, rootB),
+                prefixes, maxDepth);
         Map<String, FieldInfo> fieldsA = new LinkedHashMap<>();
         Map<String, FieldInfo> fieldsB = new LinkedHashMap<>();
-        collectFields(rootA, "", fieldsA, new HashSet<>(), 0);
-        collectFields(rootB, "", fieldsB, new HashSet<>(), 0);
+        ConfigSchema schema = ConfigSchema.current();
+        collectFields(rootA, fieldsA, prefixes, maxDepth, schema, identical);
+        collectFields(rootB, fieldsB, prefixes, maxDepth, schema, identical);
         addVirtualFields(rootA, fieldsA);
         addVirtualFields(rootB, fieldsB);
+        schema.saveIfDirty();
+
+        int[] total = new int[1];
+        JsonStreamable diffs = out -> total[0] = writeDifferences(out, fieldsA, fieldsB, prefixes, listMode, null);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("configVersionA", versionA);
+        result.put("configVersionB", versionB);
+        result.put("sfVersion", sfVersion);
+        String warning = buildVersionWarning(versionA, sfVersion);
+        if (warning != null) {
+            result.put("warning", warning);
+        }
+        result.put("differences", diffs);
+        result.put("totalDifferences", (JsonStreamable) out -> out.value(total[0]));
+        return result;
+    }
 
+    private static int writeDifferences(
+            JsonWriter out,
+            Map<String, FieldInfo> fieldsA,
+            Map<String, FieldInfo> fieldsB,
+            List<String> prefixes,
+            String listMode,
+            Map<String, Object> differing
+    ) throws IOException {
         Set<String> allKeys = new LinkedHashSet<>();
         allKeys.addAll(fieldsA.keySet());
         allKeys.addAll(fieldsB.keySet());
 
-        List<Map<String, Object>> diffs = new ArrayList<>();
-
+        int total = 0;
+        out.beginArray();
         for (String path : allKeys) {
-            if (prefix != null && !path.startsWith(prefix)) {
+            if (!matchesPrefix(path, prefixes)) {
                 continue;
             }
 
@@ -434,39 +1215,563 @@ public class ConfigBuilder {
                 List<String> listA = toStringList(valA);
                 List<String> listB = toStringList(valB);
                 if (!Objects.equals(listA, listB)) {
-                    Map<String, Object> diff = new LinkedHashMap<>();
-                    diff.put("path", path);
-                    diff.put("type", "list");
-                    diff.put("added", listDiffAdded(listA, listB));
-                    diff.put("removed", listDiffRemoved(listA, listB));
-                    diff.put("unchanged", listDiffUnchanged(listA, listB));
-                    diffs.add(diff);
+                    out.beginObject();
+                    out.name("path").value(path);
+                    out.name("type").value("list");
+                    writeListDifference(out, listA, listB, listMode);
+                    out.endObject();
+                    total++;
+                    if (differing != null) {
+                        differing.put(path, listB);
+                    }
                 }
             } else {
                 if (!Objects.equals(valA, valB)) {
-                    Map<String, Object> diff = new LinkedHashMap<>();
-                    diff.put("path", path);
-                    diff.put("valueA", toJsonValue(valA, path));
-                    diff.put("valueB", toJsonValue(valB, path));
-                    diffs.add(diff);
+                    Object jsonB = toJsonValue(valB, path);
+                    out.beginObject();
+                    out.name("path").value(path);
+                    out.name("valueA");
+                    writeJsonValue(out, toJsonValue(valA, path));
+                    out.name("valueB");
+                    writeJsonValue(out, jsonB);
+                    out.endObject();
+                    total++;
+                    if (differing != null) {
+                        differing.put(path, jsonB);
+                    }
+                }
+            }
+        }
+        out.endArray();
+        return total;
+    }
+
+    private static int handleDiffMany(Args args) throws Exception {
+        Path baselinePath = validatePath(requireArg(args, "baseline"), true);
+        String source = requireArg(args, "targets");
+        List<String> prefixes = parsePrefixes(args.options.get("prefix"));
+        int maxDepth = parseIntOption(args, "max-depth", DEFAULT_MAX_DEPTH, 0, 1000);
+        int threads = parseIntOption(args, "threads", Runtime.getRuntime().availableProcessors(), 1, 1024);
+        int threshold = parseIntOption(args, "aggregate-threshold", DEFAULT_AGGREGATE_THRESHOLD, 0, 100);
+        String listMode = parseListDiffMode(args);
+
+        List<String> targets = readTargetList(source);
+
+        Object baseline = readConfig(baselinePath, args.io);
+        String baselineVersion = readConfigVersion(baseline);
+        String sfVersion = readSfVersion();
+        ConfigSchema schema = ConfigSchema.current();
+        Map<String, FieldInfo> baselineCollected = new LinkedHashMap<>();
+        Map<String, FieldInfo> baselineVirtual = new LinkedHashMap<>();
+        collectFields(baseline, baselineCollected, prefixes, maxDepth, schema);
+        addVirtualFields(baseline, baselineVirtual);
+        Map<String, FieldInfo> baselineFields = new LinkedHashMap<>(baselineCollected);
+        baselineFields.putAll(baselineVirtual);
+        MerkleIndex baselineIndex = MerkleIndex.build(baseline);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, System.out.charset()));
+        Map<String, Map<String, LongAdder>> drift = new ConcurrentHashMap<>();
+        AtomicInteger compared = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, targets.size()).parallel().forEach(index -> {
+                Map<String, Object> record = new LinkedHashMap<>();
+                record.put("index", index);
+                record.put("target", targets.get(index));
+                Map<String, Object> differing = new LinkedHashMap<>();
+                try {
+                    Path targetPath = validatePath(targets.get(index), true);
+                    Object root = readConfig(targetPath, new IoStats());
+                    Set<String> identical = identicalSubtrees(baseline, baselineIndex, root, MerkleIndex.build(root),
+                            prefixes, maxDepth);
+                    Map<String, FieldInfo> fields = new LinkedHashMap<>();
+                    collectFields(root, fields, prefixes, maxDepth, schema, identical);
+                    addVirtualFields(root, fields);
+                    Map<String, FieldInfo> reference = baselineFields;
+                    if (!identical.isEmpty()) {
+                        reference = new LinkedHashMap<>();
+                        for (Map.Entry<String, FieldInfo> entry : baselineCollected.entrySet()) {
+                            if (!isUnder(entry.getKey(), identical)) {
+                                reference.put(entry.getKey(), entry.getValue());
+                            }
+                        }
+                        reference.putAll(baselineVirtual);
+                    }
+                    StringWriter buffer = new StringWriter();
+                    JsonWriter json = new JsonWriter(buffer);
+                    json.setSerializeNulls(true);
+                    json.setHtmlSafe(true);
+                    int total = writeDifferences(json, reference, fields, prefixes, listMode, differing);
+                    json.flush();
+                    String differences = buffer.toString();
+                    record.put("success", true);
+                    record.put("configVersion", readConfigVersion(root));
+                    record.put("differences", (JsonStreamable) out -> out.jsonValue(differences));
+                    record.put("totalDifferences", total);
+                    compared.incrementAndGet();
+                } catch (CliException ex) {
+                    record.putAll(errorPayload(ex));
+                    failed.incrementAndGet();
+                    differing.clear();
+                } catch (Exception ex) {
+                    record.putAll(errorPayload(unexpectedError(ex)));
+                    failed.incrementAndGet();
+                    differing.clear();
+                }
+                for (Map.Entry<String, Object> entry : differing.entrySet()) {
+                    drift.computeIfAbsent(entry.getKey(), key -> new ConcurrentHashMap<>())
+                            .computeIfAbsent(GSON.toJson(entry.getValue()), key -> new LongAdder())
+                            .increment();
+                }
+                try {
+                    synchronized (writer) {
+                        writeJson(writer, record);
+                        writer.write(System.lineSeparator());
+                        writer.flush();
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            })).get();
+        } finally {
+            pool.shutdown();
+        }
+
+        int successful = compared.get();
+        List<Map<String, Object>> common = new ArrayList<>();
+        for (String path : baselineFields.keySet()) {
+            addDrift(common, path, drift.remove(path), baselineFields.get(path), successful, threshold);
+        }
+        for (Map.Entry<String, Map<String, LongAdder>> entry : new TreeMap<>(drift).entrySet()) {
+            addDrift(common, entry.getKey(), entry.getValue(), null, successful, threshold);
+        }
+
+        Map<String, Object> aggregate = new LinkedHashMap<>();
+        aggregate.put("baseline", baselinePath.toString());
+        aggregate.put("configVersion", baselineVersion);
+        aggregate.put("sfVersion", sfVersion);
+        aggregate.put("targets", targets.size());
+        aggregate.put("compared", successful);
+        aggregate.put("failed", failed.get());
+        aggregate.put("threshold", threshold);
+        aggregate.put("fields", common);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("aggregate", aggregate);
+        writeJson(writer, summary);
+        writer.write(System.lineSeparator());
+        writer.flush();
+        schema.saveIfDirty();
+        return failed.get();
+    }
+
+    private static Map<String, Object> handleScan(Args args) throws Exception {
+        Path rootDir = validatePath(requireArg(args, "scan"), true);
+        int threads = parseIntOption(args, "threads", Runtime.getRuntime().availableProcessors(), 1, 1024);
+        int tolerance = parseIntOption(args, "tolerance", DEFAULT_SCAN_TOLERANCE, 0, MAX_SCAN_TOLERANCE);
+        if (!Files.isDirectory(rootDir)) {
+            throw new CliException(ERROR_VALIDATION, 1, "Not a directory: " + rootDir, null);
+        }
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(rootDir)) {
+            files = walk.filter(path -> Files.isRegularFile(path)
+                            && path.getFileName().toString().endsWith(".seospiderconfig"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException | UncheckedIOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to scan directory: " + rootDir, null);
+        }
+
+        ScanPrint[] prints = new ScanPrint[files.size()];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, files.size()).parallel().forEach(index -> {
+                Path file = files.get(index);
+                try {
+                    prints[index] = ScanPrint.of(file, readConfig(file, new IoStats()));
+                } catch (CliException ex) {
+                    prints[index] = new ScanPrint(file, ex.getMessage());
+                } catch (Exception ex) {
+                    prints[index] = new ScanPrint(file, unexpectedError(ex).getMessage());
                 }
+            })).get();
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Map<String, Object>> failed = new ArrayList<>();
+        Map<String, List<ScanPrint>> variants = new LinkedHashMap<>();
+        for (ScanPrint print : prints) {
+            if (print.error != null) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("path", rootDir.relativize(print.path).toString());
+                entry.put("error", print.error);
+                failed.add(entry);
+            } else {
+                variants.computeIfAbsent(print.hash, key -> new ArrayList<>()).add(print);
+            }
+        }
+
+        // Each group is led by its most common variant; others join the first leader they are within
+        // tolerance sections of, so no member drifts further than that from the leader.
+        List<List<ScanPrint>> ordered = new ArrayList<>(variants.values());
+        ordered.sort(Comparator.comparingInt((List<ScanPrint> variant) -> -variant.size()));
+        List<List<List<ScanPrint>>> clusters = new ArrayList<>();
+        Map<String, Integer> leaders = new HashMap<>();
+        for (List<ScanPrint> variant : ordered) {
+            List<String> keys = tolerance > 0 ? variant.get(0).maskedKeys(tolerance) : Collections.emptyList();
+            int leader = -1;
+            for (String key : keys) {
+                Integer candidate = leaders.get(key);
+                if (candidate != null && (leader < 0 || candidate < leader)) {
+                    leader = candidate;
+                }
+            }
+            if (leader < 0) {
+                for (String key : keys) {
+                    leaders.putIfAbsent(key, clusters.size());
+                }
+                clusters.add(new ArrayList<>(Collections.singletonList(variant)));
+            } else {
+                clusters.get(leader).add(variant);
+            }
+        }
+        clusters.sort(Comparator.comparingInt((List<List<ScanPrint>> cluster) ->
+                -cluster.stream().mapToInt(List::size).sum()));
+
+        ConfigSchema schema = ConfigSchema.current();
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (List<List<ScanPrint>> cluster : clusters) {
+            Set<String> varying = new TreeSet<>();
+            ScanPrint first = cluster.get(0).get(0);
+            int size = 0;
+            List<Map<String, Object>> variantList = new ArrayList<>();
+            for (List<ScanPrint> variant : cluster) {
+                ScanPrint print = variant.get(0);
+                size += variant.size();
+                Set<String> sections = new HashSet<>(first.sections.keySet());
+                sections.addAll(print.sections.keySet());
+                for (String section : sections) {
+                    if (!Objects.equals(first.sections.get(section), print.sections.get(section))) {
+                        varying.add(section);
+                    }
+                }
+                List<String> paths = new ArrayList<>();
+                for (ScanPrint member : variant) {
+                    paths.add(rootDir.relativize(member.path).toString());
+                }
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("hash", print.hash.substring(0, 32));
+                entry.put("count", variant.size());
+                entry.put("files", paths);
+                variantList.add(entry);
             }
+
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("size", size);
+            entry.put("variants", variantList);
+            entry.put("varyingSections", varying);
+            entry.put("distinguishingFields", varying.isEmpty()
+                    ? Collections.emptyList()
+                    : distinguishingFields(cluster, varying, schema));
+            out.add(entry);
         }
+        schema.saveIfDirty();
 
         Map<String, Object> result = new LinkedHashMap<>();
-        result.put("configVersionA", versionA);
-        result.put("configVersionB", versionB);
+        result.put("success", true);
+        result.put("root", rootDir.toString());
+        result.put("files", files.size());
+        result.put("distinctConfigs", variants.size());
+        result.put("clusters", out.size());
+        result.put("tolerance", tolerance);
+        result.put("groups", out);
+        result.put("failed", failed);
+        return result;
+    }
+
+    private static void handleScope(Args args) throws Exception {
+        Path configPath = validatePath(requireArg(args, "config"), true);
+        String source = requireArg(args, "urls");
+        int threads = parseIntOption(args, "threads", Runtime.getRuntime().availableProcessors(), 1, 1024);
+        int chunkSize = parseIntOption(args, "chunk-size", DEFAULT_SCOPE_CHUNK, 1, 1_000_000);
+
+        BufferedReader input;
+        if ("-".equals(source)) {
+            input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        } else {
+            Path urlsPath = validatePath(source, true);
+            try {
+                input = Files.newBufferedReader(urlsPath, StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to read URLs file: " + urlsPath, null);
+            }
+        }
+
+        Object root = readConfig(configPath, args.io);
+        ScopeRules rules = ScopeRules.of(root);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, System.out.charset()), WRITE_BUFFER_SIZE);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<ScopeChunk>> pending = new ArrayDeque<>();
+        long[] counts = new long[SCOPE_RULES.length];
+        try (BufferedReader reader = input) {
+            List<String> chunk = new ArrayList<>(chunkSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String url = line.trim();
+                if (url.isEmpty()) {
+                    continue;
+                }
+                chunk.add(url);
+                if (chunk.size() == chunkSize) {
+                    List<String> batch = chunk;
+                    pending.addLast(pool.submit(() -> rules.evaluate(batch)));
+                    chunk = new ArrayList<>(chunkSize);
+                    while (pending.size() >= threads * 2) {
+                        writeScopeChunk(writer, pending.removeFirst(), counts);
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                List<String> batch = chunk;
+                pending.addLast(pool.submit(() -> rules.evaluate(batch)));
+            }
+            while (!pending.isEmpty()) {
+                writeScopeChunk(writer, pending.removeFirst(), counts);
+            }
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to read URLs: " + source, null);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long total = 0;
+        long inScope = 0;
+        Map<String, Object> byRule = new LinkedHashMap<>();
+        for (int i = 0; i < SCOPE_RULES.length; i++) {
+            total += counts[i];
+            if (i < ScopeRules.FIRST_OUT_OF_SCOPE) {
+                inScope += counts[i];
+            }
+            byRule.put(SCOPE_RULES[i], counts[i]);
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("config", configPath.toString());
+        summary.put("configVersion", readConfigVersion(root));
+        summary.put("urls", total);
+        summary.put("inScope", inScope);
+        summary.put("outOfScope", total - inScope);
+        summary.put("rules", byRule);
+        summary.put("includePatterns", rules.includes.size());
+        summary.put("excludePatterns", rules.excludes.size());
+        summary.put("allowedDomains", rules.domainCount);
+        summary.put("invalidPatterns", rules.invalid);
+        Map<String, Object> wrapper = new LinkedHashMap<>();
+        wrapper.put("summary", summary);
+        writeJson(writer, wrapper);
+        writer.write(System.lineSeparator());
+        writer.flush();
+    }
+
+    private static Map<String, Object> handleOptimizePatterns(Args args) throws Exception {
+        Path configPath = validatePath(requireArg(args, "config"), true);
+        String output = args.options.get("output");
+        Path outputPath = output == null ? null : validatePath(output, false);
+        String source = args.options.get("urls");
+        boolean combine = args.flags.contains("combine");
+        boolean dropUnmatched = args.flags.contains("drop-unmatched");
+        int maxAlternation = parseIntOption(args, "max-alternation", DEFAULT_MAX_ALTERNATION, 2, 100_000);
+        if (dropUnmatched && source == null) {
+            throw new CliException(ERROR_VALIDATION, 1, "--drop-unmatched requires --urls", null);
+        }
+        if ("-".equals(source) && !args.stdin) {
+            throw new CliException(ERROR_VALIDATION, 1, "--urls - is only supported on the command line", null);
+        }
+
+        List<String> sample = new ArrayList<>();
+        if (source != null) {
+            try (BufferedReader reader = "-".equals(source)
+                    ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                    : Files.newBufferedReader(validatePath(source, true), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        sample.add(line.trim());
+                    }
+                }
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to read URLs: " + source, null);
+            }
+        }
+
+        Object root = loadConfig(args, configPath, outputPath != null);
+        String configVersion = readConfigVersion(root);
+        String sfVersion = readSfVersion();
+        List<String> warnings = new ArrayList<>();
+        JsonObject patches = new JsonObject();
+        List<Map<String, Object>> lists = new ArrayList<>();
+
+        List<String> excludes = getExcludeList(root);
+        if (excludes != null) {
+            lists.add(PatternOptimizer.optimize(VIRTUAL_EXCLUDE_PATTERNS, excludes, sample, combine, dropUnmatched,
+                    maxAlternation, warnings, patches));
+        }
+        Object includes = readPath(root, "mCrawlConfig.mIncludePatterns");
+        if (includes != null) {
+            lists.add(PatternOptimizer.optimize("mCrawlConfig.mIncludePatterns", toStringList(includes), sample,
+                    combine, dropUnmatched, maxAlternation, warnings, patches));
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        result.put("configVersion", configVersion);
         result.put("sfVersion", sfVersion);
-        String warning = buildVersionWarning(versionA, sfVersion);
+        result.put("sampleUrls", sample.size());
+        result.put("lists", lists);
+        if (outputPath != null) {
+            List<Map<String, Object>> changes = new ArrayList<>();
+            applyPatches(root, patches, changes, warnings);
+            ByteArrayOutputStream image = writeConfig(outputPath, root, args.io);
+            if (args.configs != null) {
+                args.configs.written(outputPath, image.toByteArray(), root);
+            }
+            result.put("outputPath", outputPath.toString());
+            result.put("changes", changes);
+        }
+        String warning = buildVersionWarning(configVersion, sfVersion);
         if (warning != null) {
-            result.put("warning", warning);
+            warnings.add(warning);
         }
-        result.put("differences", diffs);
-        result.put("totalDifferences", diffs.size());
-        writeJson(result);
+        result.put("warnings", warnings);
+        return result;
+    }
+
+    private static void writeScopeChunk(Writer writer, Future<ScopeChunk> future, long[] counts) throws Exception {
+        ScopeChunk chunk;
+        try {
+            chunk = future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += chunk.counts[i];
+        }
+        writer.write(chunk.lines);
+        writer.flush();
+    }
+
+    private static List<Map<String, Object>> distinguishingFields(
+            List<List<ScanPrint>> cluster,
+            Set<String> sections,
+            ConfigSchema schema
+    ) throws CliException {
+        List<String> prefixes = new ArrayList<>();
+        for (String section : sections) {
+            if (!section.isEmpty()) {
+                prefixes.add(section + ".");
+            }
+        }
+        boolean rootFields = sections.contains("");
+
+        Map<String, Map<String, int[]>> values = new LinkedHashMap<>();
+        for (List<ScanPrint> variant : cluster) {
+            ScanPrint print = variant.get(0);
+            Object root = readConfig(print.path, new IoStats());
+            Map<String, FieldInfo> fields = new LinkedHashMap<>();
+            if (!prefixes.isEmpty()) {
+                collectFields(root, fields, prefixes, DEFAULT_MAX_DEPTH, schema);
+                Map<String, FieldInfo> virtual = new LinkedHashMap<>();
+                addVirtualFields(root, virtual);
+                for (Map.Entry<String, FieldInfo> field : virtual.entrySet()) {
+                    if (matchesPrefix(field.getKey(), prefixes)) {
+                        fields.put(field.getKey(), field.getValue());
+                    }
+                }
+            }
+            if (rootFields) {
+                collectFields(root, fields, null, 0, schema);
+            }
+            for (Map.Entry<String, FieldInfo> field : fields.entrySet()) {
+                Object value = maskValueIfNeeded(field.getKey(), toJsonValue(field.getValue().value, field.getKey()));
+                if (value instanceof List && ((List<?>) value).size() > SCAN_LIST_PREVIEW) {
+                    Map<String, Object> summary = new LinkedHashMap<>();
+                    summary.put("length", ((List<?>) value).size());
+                    summary.put("hash", toHex(Arrays.copyOf(sha256().digest(GSON.toJson(value).getBytes(StandardCharsets.UTF_8)), 16)));
+                    value = summary;
+                }
+                String json = GSON.toJson(value);
+                values.computeIfAbsent(field.getKey(), key -> new LinkedHashMap<>())
+                        .computeIfAbsent(json, key -> new int[1])[0] += variant.size();
+            }
+        }
+
+        int total = cluster.stream().mapToInt(List::size).sum();
+        List<Map<String, Object>> distinguishing = new ArrayList<>();
+        for (Map.Entry<String, Map<String, int[]>> field : values.entrySet()) {
+            Map<String, int[]> counts = field.getValue();
+            int present = counts.values().stream().mapToInt(count -> count[0]).sum();
+            if (counts.size() < 2 && present == total) {
+                continue;
+            }
+            List<Map<String, Object>> valueList = new ArrayList<>();
+            for (Map.Entry<String, int[]> value : counts.entrySet()) {
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("value", JsonParser.parseString(value.getKey()));
+                item.put("count", value.getValue()[0]);
+                valueList.add(item);
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("path", field.getKey());
+            entry.put("values", valueList);
+            distinguishing.add(entry);
+        }
+        return distinguishing;
+    }
+
+    private static void addDrift(
+            List<Map<String, Object>> common,
+            String path,
+            Map<String, LongAdder> values,
+            FieldInfo baseline,
+            int compared,
+            int threshold
+    ) {
+        if (values == null || compared == 0) {
+            return;
+        }
+        long differing = 0;
+        List<Map.Entry<String, Long>> counts = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> entry : values.entrySet()) {
+            long count = entry.getValue().sum();
+            differing += count;
+            counts.add(new AbstractMap.SimpleEntry<>(entry.getKey(), count));
+        }
+        if (differing * 100 <= (long) threshold * compared) {
+            return;
+        }
+        counts.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+
+        List<Map<String, Object>> top = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : counts.subList(0, Math.min(AGGREGATE_TOP_VALUES, counts.size()))) {
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put("value", JsonParser.parseString(entry.getKey()));
+            value.put("count", entry.getValue());
+            top.add(value);
+        }
+        Map<String, Object> field = new LinkedHashMap<>();
+        field.put("path", path);
+        field.put("differingTargets", differing);
+        field.put("ratio", Math.round(differing * 1000.0 / compared) / 1000.0);
+        field.put("baselineValue", baseline == null ? null : toJsonValue(baseline.value, path));
+        field.put("distinctValues", counts.size());
+        field.put("topValues", top);
+        common.add(field);
     }
 
-    private static void handleTestExtraction(Args args) throws Exception {
+    private static Map<String, Object> handleTestExtraction(Args args) throws Exception {
         String url = requireArg(args, "url");
         String selector = requireArg(args, "selector");
         String selectorType = requireArg(args, "selector-type");
@@ -496,47 +1801,542 @@ public class ConfigBuilder {
         result.put("matches", matchItems);
         result.put("matchCount", matches.size());
         result.put("warnings", warnings);
-        writeJson(result);
+        return result;
     }
 
-    private static Args parseArgs(String[] args) throws CliException {
-        Args parsed = new Args();
-        for (int i = 0; i < args.length; i++) {
-            String arg = args[i];
-            if ("--inspect".equals(arg)) {
-                parsed.command = "inspect";
-            } else if ("--build".equals(arg)) {
-                parsed.command = "build";
-            } else if ("--diff".equals(arg)) {
-                parsed.command = "diff";
-            } else if ("--test-extraction".equals(arg)) {
-                parsed.command = "test-extraction";
-            } else if ("--config".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("config", args[++i]);
-            } else if ("--template".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("template", args[++i]);
-            } else if ("--output".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("output", args[++i]);
-            } else if ("--patches".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("patches", args[++i]);
-            } else if ("--patches-file".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("patches-file", args[++i]);
-            } else if ("--prefix".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("prefix", args[++i]);
-            } else if ("--config-a".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("config-a", args[++i]);
-            } else if ("--config-b".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("config-b", args[++i]);
-            } else if ("--dry-run".equals(arg)) {
-                parsed.flags.add("dry-run");
-            } else if ("--url".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("url", args[++i]);
-            } else if ("--selector".equals(arg) && i + 1 < args.length) {
-                parsed.options.put("selector", args[++i]);
-            } else if ("--selector-type".equals(arg) && i + 1 < args.length) {
+    private static Map<String, Object> handleCreateCdsArchive(Args args) throws Exception {
+        Path archivePath = validatePath(requireArg(args, "create-cds-archive"), false);
+        Path samplePath = validatePath(requireArg(args, "config"), true);
+        long start = System.nanoTime();
+        if (archivePath.getParent() != null && !Files.isDirectory(archivePath.getParent())) {
+            throw new CliException(ERROR_IO, 2, "Directory not found: " + archivePath.getParent(), null);
+        }
+
+        List<Path> classpath = classpathEntries();
+        for (Path entry : classpath) {
+            if (Files.isDirectory(entry)) {
+                throw new CliException(ERROR_VALIDATION, 1, "CDS archives require a classpath of jar files: " + entry, null);
+            }
+        }
+        String jarSetHash = jarSetHash(classpath);
+        String classpathArg = System.getProperty("java.class.path");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        Path workDir;
+        try {
+            workDir = Files.createTempDirectory("sfconfig-cds");
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to create temp directory for CDS archive", null);
+        }
+        Path classList = workDir.resolve("classes.lst");
+        Path scratchConfig = workDir.resolve("training.seospiderconfig");
+        Path tempArchive = archivePath.resolveSibling(archivePath.getFileName() + ".tmp");
+        int classCount;
+        try {
+            runJavaStep("training", workDir, java,
+                    "-XX:DumpLoadedClassList=" + classList,
+                    "-cp", classpathArg,
+                    "ConfigBuilder", "--cds-training",
+                    "--config", samplePath.toString(),
+                    "--output", scratchConfig.toString());
+            runJavaStep("dump", workDir, java,
+                    "-Xshare:dump",
+                    "-XX:SharedClassListFile=" + classList,
+                    "-XX:SharedArchiveFile=" + tempArchive,
+                    "-cp", classpathArg);
+            classCount = Files.readAllLines(classList, StandardCharsets.UTF_8).size();
+            moveReplacing(tempArchive, archivePath);
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to write CDS archive: " + archivePath, null);
+        } finally {
+            Files.deleteIfExists(tempArchive);
+            deleteRecursively(workDir);
+        }
+
+        List<String> jarNames = new ArrayList<>();
+        for (Path entry : classpath) {
+            jarNames.add(entry.getFileName().toString());
+        }
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("archive", archivePath.getFileName().toString());
+        metadata.put("jarSetHash", jarSetHash);
+        metadata.put("javaVersion", System.getProperty("java.version"));
+        metadata.put("javaHome", System.getProperty("java.home"));
+        metadata.put("classpath", jarNames);
+        metadata.put("classCount", classCount);
+        metadata.put("createdAt", Instant.now().toString());
+        Path metadataPath = archivePath.resolveSibling(archivePath.getFileName() + ".json");
+        try {
+            Files.writeString(metadataPath, GSON.toJson(metadata), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to write CDS metadata: " + metadataPath, null);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        result.put("archivePath", archivePath.toString());
+        result.put("metadataPath", metadataPath.toString());
+        result.put("jarSetHash", jarSetHash);
+        result.put("classCount", classCount);
+        result.put("archiveBytes", Files.size(archivePath));
+        result.put("elapsedMs", (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    private static Map<String, Object> handleCdsTraining(Args args) throws Exception {
+        String config = validatePath(requireArg(args, "config"), true).toString();
+        String output = validatePath(requireArg(args, "output"), false).toString();
+
+        List<Object> results = new ArrayList<>();
+        results.add(execute(parseArgs(new String[]{"--inspect", "--config", config})));
+        results.add(execute(parseArgs(new String[]{"--build", "--template", config, "--output", output, "--patches", "{}"})));
+        results.add(execute(parseArgs(new String[]{"--diff", "--config-a", config, "--config-b", output})));
+        results.add(extractMatches(CDS_TRAINING_HTML, "http://localhost/", "h1", "CSS", "TEXT"));
+        results.add(extractMatches(CDS_TRAINING_HTML, "http://localhost/", "//p", "XPATH", "HTML_ELEMENT"));
+        results.add(extractMatches(CDS_TRAINING_HTML, "http://localhost/", "<p>(.*?)</p>", "REGEX", "TEXT"));
+        writeJson(Writer.nullWriter(), results);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        return result;
+    }
+
+    private static Map<String, Object> handleSchema(Args args) throws Exception {
+        ConfigSchema schema = ConfigSchema.current();
+        boolean cached = schema.hasFields();
+        String configArg = args.options.get("config");
+        if (!cached) {
+            if (configArg == null) {
+                throw new CliException(ERROR_VALIDATION, 1, "No schema snapshot for this SF install yet; pass --config to build one", null);
+            }
+            Path configPath = validatePath(configArg, true);
+            Object root = loadConfig(args, configPath, false);
+            String sfVersion = readSfVersion();
+            Map<String, FieldInfo> fieldMap = new LinkedHashMap<>();
+            collectFields(root, fieldMap, null, DEFAULT_MAX_DEPTH, schema);
+            addVirtualFields(root, fieldMap);
+            schema.capture(root, fieldMap, sfVersion);
+            schema.saveIfDirty();
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        result.put("cached", cached);
+        result.put("snapshotPath", schema.file == null ? null : schema.file.toString());
+        result.putAll(schema.toJson());
+        return result;
+    }
+
+    private static Map<String, Object> handleStorePut(Args args) throws Exception {
+        ConfigStore store = ConfigStore.open(storeDir(args));
+        String name = ConfigStore.validateName(requireArg(args, "store-put"));
+        Path configPath = validatePath(requireArg(args, "config"), true);
+        Object root = readConfig(configPath, args.io);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        result.put("name", name);
+        result.put("configVersion", readConfigVersion(root));
+        result.putAll(store.put(name, root));
+        result.put("store", store.dir.toString());
+        return result;
+    }
+
+    private static Map<String, Object> handleStoreGet(Args args) throws Exception {
+        ConfigStore store = ConfigStore.open(storeDir(args));
+        String name = ConfigStore.validateName(requireArg(args, "store-get"));
+        Path outputPath = validatePath(requireArg(args, "output"), false);
+        Object root = store.materialize(name);
+        writeConfig(outputPath, root, args.io);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        result.put("name", name);
+        result.put("outputPath", outputPath.toString());
+        result.put("configVersion", readConfigVersion(root));
+        result.put("io", args.io.toJson());
+        return result;
+    }
+
+    private static Map<String, Object> handleStoreList(Args args) throws Exception {
+        ConfigStore store = ConfigStore.open(storeDir(args));
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        result.put("store", store.dir.toString());
+        result.putAll(store.list());
+        return result;
+    }
+
+    private static Path storeDir(Args args) {
+        String explicit = args.options.get("store");
+        if (explicit == null || explicit.trim().isEmpty()) {
+            explicit = System.getenv("SF_CONFIG_STORE");
+        }
+        if (explicit != null && !explicit.trim().isEmpty()) {
+            return Paths.get(explicit).toAbsolutePath().normalize();
+        }
+        return Paths.get(System.getProperty("user.home"), ".sfconfig", "store");
+    }
+
+    private static Map<String, Object> handleResolveClasspath(Args args) throws Exception {
+        Path configPath = validatePath(requireArg(args, "config"), true);
+        String outputArg = args.options.get("output");
+        Path outputPath = outputArg == null ? null : validatePath(outputArg, false);
+        Path sfDir = sfInstallDir(args.options.get("sf-path"));
+        if (sfDir == null) {
+            throw new CliException(ERROR_VALIDATION, 1, "Unable to locate SF install; pass --sf-path", null);
+        }
+
+        long start = System.nanoTime();
+        ClassIndex index = ClassIndex.load(sfDir, cacheDir(args));
+        long indexMs = (System.nanoTime() - start) / 1_000_000;
+
+        Set<String> streamClasses = new LinkedHashSet<>();
+        try (ObjectInputStream ois = new IndexedObjectInputStream(openConfigStream(configPath, args.io), streamClasses)) {
+            ois.readObject();
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to read config: " + configPath, null);
+        } catch (ClassNotFoundException ex) {
+            throw new CliException(ERROR_PARSE, 3, "Unknown class in config: " + ex.getMessage(), null);
+        }
+
+        List<String> roots = new ArrayList<>(streamClasses);
+        roots.addAll(CLASSPATH_ROOT_CLASSES);
+        Set<String> jars = new TreeSet<>();
+        Set<String> missing = new TreeSet<>();
+        Set<Class<?>> visited = new HashSet<>();
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        for (String name : roots) {
+            try {
+                queue.add(Class.forName(name, false, ConfigBuilder.class.getClassLoader()));
+            } catch (ClassNotFoundException | LinkageError ex) {
+                String jar = index.jarFor(name);
+                if (jar != null) {
+                    jars.add(jar);
+                } else if (streamClasses.contains(name)) {
+                    missing.add(name);
+                }
+            }
+        }
+        while (!queue.isEmpty()) {
+            Class<?> cls = queue.poll();
+            while (cls.isArray()) {
+                cls = cls.getComponentType();
+            }
+            if (cls.isPrimitive() || !visited.add(cls) || isJdkClass(cls.getName())) {
+                continue;
+            }
+            String jar = index.jarFor(cls.getName());
+            if (jar == null) {
+                missing.add(cls.getName());
+                continue;
+            }
+            jars.add(jar);
+            try {
+                if (cls.getSuperclass() != null) {
+                    queue.add(cls.getSuperclass());
+                }
+                queue.addAll(Arrays.asList(cls.getInterfaces()));
+                for (Field field : cls.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                        queue.add(field.getType());
+                    }
+                }
+            } catch (LinkageError ex) {
+                missing.add(cls.getName() + " (" + ex.getMessage() + ")");
+            }
+        }
+
+        List<String> classpath = new ArrayList<>(jars);
+        if (outputPath != null) {
+            try {
+                Files.writeString(outputPath, String.join(File.pathSeparator, classpath), StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to write classpath: " + outputPath, null);
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("success", true);
+        result.put("sfPath", sfDir.toString());
+        result.put("jarSetHash", index.jarSetHash);
+        result.put("classpath", classpath);
+        result.put("jarCount", classpath.size());
+        result.put("totalJars", index.jarCount());
+        result.put("streamClasses", streamClasses.size());
+        result.put("indexedClasses", index.size());
+        result.put("indexCached", index.fromCache);
+        result.put("indexMs", indexMs);
+        result.put("missingClasses", new ArrayList<>(missing));
+        result.put("outputPath", outputPath == null ? null : outputPath.toString());
+        return result;
+    }
+
+    private static boolean isJdkClass(String name) {
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.")
+                || name.startsWith("sun.") || name.startsWith("com.sun.");
+    }
+
+    private static Path sfInstallDir(String explicit) {
+        if (explicit != null && !explicit.trim().isEmpty()) {
+            return Paths.get(explicit).toAbsolutePath().normalize();
+        }
+        String env = System.getenv("SF_PATH");
+        if (env != null && !env.trim().isEmpty() && Files.isDirectory(Paths.get(env))) {
+            return Paths.get(env).toAbsolutePath().normalize();
+        }
+        for (Path entry : classpathEntries()) {
+            if (entry.getFileName() != null && entry.getFileName().toString().equals(SF_JAR_NAME)) {
+                return entry.getParent();
+            }
+        }
+        return null;
+    }
+
+    private static List<Path> sfInstallJars(Path sfDir) throws CliException {
+        try (Stream<Path> list = Files.list(sfDir)) {
+            return list.filter(path -> {
+                String name = path.getFileName().toString();
+                return Files.isRegularFile(path) && (name.endsWith(".jar") || name.endsWith(".JAR"));
+            }).sorted().collect(Collectors.toList());
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to list SF install: " + sfDir, null);
+        }
+    }
+
+    private static Path cacheDir(Args args) {
+        String explicit = args == null ? null : args.options.get("cache-dir");
+        if (explicit == null || explicit.trim().isEmpty()) {
+            explicit = System.getenv("SF_CONFIG_CACHE_DIR");
+        }
+        if (explicit != null && !explicit.trim().isEmpty()) {
+            return Paths.get(explicit).toAbsolutePath().normalize();
+        }
+        return Paths.get(System.getProperty("user.home"), ".sfconfig", "cache");
+    }
+
+    private static void writeCacheFile(Path target, String content) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(temp, content, StandardCharsets.UTF_8);
+            moveReplacing(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void runJavaStep(String step, Path workDir, String... command) throws CliException, IOException {
+        Path log = workDir.resolve(step + ".log");
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile());
+        int exitCode;
+        try {
+            exitCode = builder.start().waitFor();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CliException(ERROR_UNKNOWN, 99, "Interrupted during CDS " + step, null);
+        }
+        if (exitCode != 0) {
+            List<String> lines = Files.exists(log) ? Files.readAllLines(log, StandardCharsets.UTF_8) : new ArrayList<>();
+            Map<String, Object> details = new LinkedHashMap<>();
+            details.put("step", step);
+            details.put("exitCode", exitCode);
+            details.put("log", lines.subList(Math.max(0, lines.size() - 20), lines.size()));
+            throw new CliException(ERROR_UNKNOWN, 99, "CDS " + step + " step failed", details);
+        }
+    }
+
+    private static List<Path> classpathEntries() {
+        List<Path> entries = new ArrayList<>();
+        String classpath = System.getProperty("java.class.path");
+        if (classpath == null) {
+            return entries;
+        }
+        for (String entry : classpath.split(Pattern.quote(File.pathSeparator))) {
+            if (!entry.trim().isEmpty()) {
+                entries.add(Paths.get(entry).toAbsolutePath().normalize());
+            }
+        }
+        return entries;
+    }
+
+    private static String jarSetHash(List<Path> jars) throws CliException {
+        List<String> lines = new ArrayList<>();
+        for (Path jar : jars) {
+            try {
+                lines.add(jar.getFileName() + "\t" + Files.size(jar) + "\t" + Files.getLastModifiedTime(jar).toMillis() + "\n");
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to stat classpath entry: " + jar, null);
+            }
+        }
+        Collections.sort(lines);
+        MessageDigest digest = sha256();
+        for (String line : lines) {
+            digest.update(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void moveReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(root)) {
+            List<Path> paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            for (Path path : paths) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static Args parseArgs(String[] args) throws CliException {
+        Args parsed = new Args();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--serve".equals(arg)) {
+                parsed.command = "serve";
+            } else if ("--batch".equals(arg) && i + 1 < args.length) {
+                parsed.command = "batch";
+                parsed.options.put("batch", args[++i]);
+            } else if ("--stop-on-error".equals(arg)) {
+                parsed.flags.add("stop-on-error");
+            } else if ("--create-cds-archive".equals(arg) && i + 1 < args.length) {
+                parsed.command = "create-cds-archive";
+                parsed.options.put("create-cds-archive", args[++i]);
+            } else if ("--cds-training".equals(arg)) {
+                parsed.command = "cds-training";
+            } else if ("--schema".equals(arg)) {
+                parsed.command = "schema";
+            } else if ("--store-put".equals(arg) && i + 1 < args.length) {
+                parsed.command = "store-put";
+                parsed.options.put("store-put", args[++i]);
+            } else if ("--store-get".equals(arg) && i + 1 < args.length) {
+                parsed.command = "store-get";
+                parsed.options.put("store-get", args[++i]);
+            } else if ("--store-list".equals(arg)) {
+                parsed.command = "store-list";
+            } else if ("--store".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("store", args[++i]);
+            } else if ("--resolve-classpath".equals(arg)) {
+                parsed.command = "resolve-classpath";
+            } else if ("--sf-path".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("sf-path", args[++i]);
+            } else if ("--cache-dir".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("cache-dir", args[++i]);
+            } else if ("--http".equals(arg)) {
+                parsed.command = "http";
+            } else if ("--inspect".equals(arg)) {
+                parsed.command = "inspect";
+            } else if ("--build".equals(arg)) {
+                parsed.command = "build";
+            } else if ("--diff".equals(arg)) {
+                parsed.command = "diff";
+            } else if ("--test-extraction".equals(arg)) {
+                parsed.command = "test-extraction";
+            } else if ("--config".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("config", args[++i]);
+            } else if ("--template".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("template", args[++i]);
+            } else if ("--output".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("output", args[++i]);
+            } else if ("--patches".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("patches", args[++i]);
+            } else if ("--patches-file".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("patches-file", args[++i]);
+            } else if ("--prefix".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("prefix", args[++i]);
+            } else if ("--diff-many".equals(arg)) {
+                parsed.command = "diff-many";
+            } else if ("--apply-many".equals(arg)) {
+                parsed.command = "apply-many";
+            } else if ("--output-dir".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("output-dir", args[++i]);
+            } else if ("--scan".equals(arg) && i + 1 < args.length) {
+                parsed.command = "scan";
+                parsed.options.put("scan", args[++i]);
+            } else if ("--scope".equals(arg)) {
+                parsed.command = "scope";
+            } else if ("--urls".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("urls", args[++i]);
+            } else if ("--optimize-patterns".equals(arg)) {
+                parsed.command = "optimize-patterns";
+            } else if ("--combine".equals(arg)) {
+                parsed.flags.add("combine");
+            } else if ("--drop-unmatched".equals(arg)) {
+                parsed.flags.add("drop-unmatched");
+            } else if ("--max-alternation".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("max-alternation", args[++i]);
+            } else if ("--chunk-size".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("chunk-size", args[++i]);
+            } else if ("--tolerance".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("tolerance", args[++i]);
+            } else if ("--baseline".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("baseline", args[++i]);
+            } else if ("--targets".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("targets", args[++i]);
+            } else if ("--aggregate-threshold".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("aggregate-threshold", args[++i]);
+            } else if ("--config-a".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("config-a", args[++i]);
+            } else if ("--config-b".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("config-b", args[++i]);
+            } else if ("--list-diff".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("list-diff", args[++i]);
+            } else if ("--subtree-hashes".equals(arg)) {
+                parsed.flags.add("subtree-hashes");
+            } else if ("--dry-run".equals(arg)) {
+                parsed.flags.add("dry-run");
+            } else if ("--url".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("url", args[++i]);
+            } else if ("--selector".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("selector", args[++i]);
+            } else if ("--selector-type".equals(arg) && i + 1 < args.length) {
                 parsed.options.put("selector-type", args[++i]);
             } else if ("--extract-mode".equals(arg) && i + 1 < args.length) {
                 parsed.options.put("extract-mode", args[++i]);
+            } else if ("--port".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("port", args[++i]);
+            } else if ("--max-depth".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("max-depth", args[++i]);
+            } else if ("--config-cache-mb".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("config-cache-mb", args[++i]);
+            } else if ("--fan-out".equals(arg) && i + 1 < args.length) {
+                parsed.command = "fan-out";
+                parsed.options.put("fan-out", args[++i]);
+            } else if ("--threads".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("threads", args[++i]);
+            } else if ("--max-concurrency".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("max-concurrency", args[++i]);
+            } else if ("--queue-timeout".equals(arg) && i + 1 < args.length) {
+                parsed.options.put("queue-timeout", args[++i]);
             } else if ("--render-js".equals(arg)) {
                 parsed.flags.add("render-js");
             } else if ("--help".equals(arg) || "-h".equals(arg)) {
@@ -561,11 +2361,17 @@ public class ConfigBuilder {
         return value;
     }
 
-    private static String resolvePatchesArg(Args args) throws CliException {
+    private static PatchPlan resolvePatchPlan(Args args) throws CliException {
         String patchFile = args.options.get("patches-file");
         if (patchFile != null && !patchFile.trim().isEmpty()) {
-            try {
-                return Files.readString(Paths.get(patchFile), StandardCharsets.UTF_8);
+            if ("-".equals(patchFile)) {
+                if (!args.stdin) {
+                    throw new CliException(ERROR_VALIDATION, 1, "--patches-file - is only supported on the command line", null);
+                }
+                return readPatchPlan(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+            }
+            try (Reader reader = Files.newBufferedReader(Paths.get(patchFile), StandardCharsets.UTF_8)) {
+                return readPatchPlan(reader);
             } catch (IOException ex) {
                 throw new CliException(ERROR_IO, 2, "Unable to read patches file", null);
             }
@@ -575,7 +2381,21 @@ public class ConfigBuilder {
         if (patchJson == null || patchJson.trim().isEmpty()) {
             throw new CliException(ERROR_VALIDATION, 1, "Missing required argument: --patches or --patches-file", null);
         }
-        return patchJson;
+        return PatchPlan.of(patchJson);
+    }
+
+    private static PatchPlan readPatchPlan(Reader source) throws CliException {
+        JsonReader in = new JsonReader(source);
+        in.setStrictness(Strictness.LENIENT);
+        try {
+            return PatchPlan.read(in);
+        } catch (JsonIOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to read patches file", null);
+        } catch (MalformedJsonException | EOFException | IllegalStateException | JsonParseException ex) {
+            throw new CliException(ERROR_VALIDATION, 1, "Invalid JSON for --patches", null);
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to read patches file", null);
+        }
     }
 
     private static Path validatePath(String raw, boolean mustExist) throws CliException {
@@ -593,8 +2413,56 @@ public class ConfigBuilder {
         return path;
     }
 
-    private static Object readConfig(Path path) throws CliException {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(path.toFile()))) {
+    private static Object readConfig(Path path, IoStats io) throws CliException {
+        try (ObjectInputStream ois = new IndexedObjectInputStream(openConfigStream(path, io), null)) {
+            return ois.readObject();
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to read config: " + path, null);
+        } catch (ClassNotFoundException ex) {
+            throw new CliException(ERROR_PARSE, 3, "Unknown class in config: " + ex.getMessage(), null);
+        } catch (Exception ex) {
+            throw new CliException(ERROR_PARSE, 3, "Invalid config file: " + path, null);
+        }
+    }
+
+    private static Object loadConfig(Args args, Path path, boolean mutable) throws CliException {
+        if (args.configs == null) {
+            return readConfig(path, args.io);
+        }
+        return mutable ? args.configs.copy(path, args.io) : args.configs.shared(path, args.io);
+    }
+
+    private static InputStream openConfigStream(Path path, IoStats io) throws IOException {
+        if (MMAP_READS && Files.isRegularFile(path)) {
+            long start = System.nanoTime();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size >= MMAP_THRESHOLD && size <= Integer.MAX_VALUE) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    io.read("mmap", size, System.nanoTime() - start);
+                    return new ByteBufferInputStream(buffer);
+                }
+            }
+        }
+        return new ByteArrayInputStream(readConfigBytes(path, io));
+    }
+
+    private static byte[] readConfigBytes(Path path, IoStats io) throws IOException {
+        long start = System.nanoTime();
+        byte[] bytes;
+        if (Files.isRegularFile(path)) {
+            bytes = Files.readAllBytes(path);
+        } else {
+            try (InputStream in = Files.newInputStream(path)) {
+                bytes = in.readAllBytes();
+            }
+        }
+        io.read("heap", bytes.length, System.nanoTime() - start);
+        return bytes;
+    }
+
+    private static Object deserializeConfig(byte[] image, Path path) throws CliException {
+        try (ObjectInputStream ois = new IndexedObjectInputStream(new ByteArrayInputStream(image), null)) {
             return ois.readObject();
         } catch (IOException ex) {
             throw new CliException(ERROR_IO, 2, "Unable to read config: " + path, null);
@@ -605,43 +2473,90 @@ public class ConfigBuilder {
         }
     }
 
-    private static void writeConfig(Path path, Object root) throws CliException {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(path.toFile()))) {
+    private static ByteArrayOutputStream writeConfig(Path path, Object root, IoStats io) throws CliException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(WRITE_BUFFER_SIZE);
+        try (ObjectOutputStream oos = new ObjectOutputStream(buffer)) {
             oos.writeObject(root);
         } catch (IOException ex) {
             throw new CliException(ERROR_IO, 2, "Unable to write config: " + path, null);
         }
-    }
 
-    private static void collectFields(Object obj, String prefix, Map<String, FieldInfo> out, Set<Integer> seen, int depth) {
-        if (obj == null || depth > MAX_DEPTH) {
-            return;
+        long start = System.nanoTime();
+        try {
+            Path target = Files.isSymbolicLink(path) ? path.toRealPath() : path;
+            if (Files.exists(target) && !Files.isRegularFile(target)) {
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    buffer.writeTo(out);
+                }
+                io.wrote(buffer.size(), System.nanoTime() - start, false);
+            } else {
+                writeAtomically(target, buffer);
+                io.wrote(buffer.size(), System.nanoTime() - start, true);
+            }
+        } catch (IOException ex) {
+            throw new CliException(ERROR_IO, 2, "Unable to write config: " + path, null);
         }
-        int identity = System.identityHashCode(obj);
-        if (seen.contains(identity)) {
-            return;
+        return buffer;
+    }
+
+    private static void writeAtomically(Path target, ByteArrayOutputStream data) throws IOException {
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = dir.resolve("." + target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                data.writeTo(Channels.newOutputStream(channel));
+                channel.force(true);
+            }
+            if (Files.exists(target)) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException | IOException ex) {
+                    // Non-POSIX file system; the temp file keeps default permissions.
+                }
+            }
+            moveReplacing(temp, target);
+            try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException | RuntimeException ex) {
+                // Directories cannot be opened for sync on every platform.
+            }
+        } finally {
+            Files.deleteIfExists(temp);
         }
-        seen.add(identity);
+    }
 
-        Class<?> cls = obj.getClass();
+    private static void collectFields(Object root, Map<String, FieldInfo> out, List<String> prefixes, int maxDepth,
+                                      ConfigSchema schema) {
+        collectFields(root, out, prefixes, maxDepth, schema, null);
+    }
 
-        if (isLeafValue(obj)) {
-            String path = prefix;
-            FieldInfo info = buildFieldInfo(obj, path);
-            out.put(path, info);
+    private static void collectFields(Object root, Map<String, FieldInfo> out, List<String> prefixes, int maxDepth,
+                                      ConfigSchema schema, Set<String> skip) {
+        if (root == null) {
             return;
         }
-
-        if (obj instanceof List) {
-            FieldInfo info = buildListFieldInfo((List<?>) obj, prefix);
-            out.put(prefix, info);
+        if (isLeafValue(root)) {
+            out.put("", buildFieldInfo(root, "", schema));
+            return;
+        }
+        if (root instanceof List) {
+            out.put("", buildListFieldInfo((List<?>) root, ""));
             return;
         }
 
-        for (Field field : getAllFields(cls)) {
-            if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        seen.add(root);
+        Deque<TraversalFrame> stack = new ArrayDeque<>();
+        stack.push(new TraversalFrame(root, "", 0));
+
+        while (!stack.isEmpty()) {
+            TraversalFrame frame = stack.peek();
+            if (frame.index >= frame.fields.size()) {
+                stack.pop();
                 continue;
             }
+            Field field = frame.fields.get(frame.index++);
+            String prefix = frame.path;
             String name = field.getName();
             String path = prefix.isEmpty() ? name : prefix + "." + name;
 
@@ -653,17 +2568,16 @@ public class ConfigBuilder {
                 continue;
             }
 
-            field.setAccessible(true);
             Object value;
             try {
-                value = field.get(obj);
+                value = field.get(frame.obj);
             } catch (IllegalAccessException ex) {
                 continue;
             }
 
             if (value == null) {
-                if (isLeafType(field.getType())) {
-                    FieldInfo info = new FieldInfo(typeNameFor(field.getType()), null);
+                if (isLeafType(field.getType()) && matchesPrefix(path, prefixes)) {
+                    FieldInfo info = new FieldInfo(schema.typeName(field.getType()), null);
                     info.isList = false;
                     out.put(path, info);
                 }
@@ -671,22 +2585,178 @@ public class ConfigBuilder {
             }
 
             if (isLeafValue(value)) {
-                out.put(path, buildFieldInfo(value, path));
+                if (matchesPrefix(path, prefixes)) {
+                    out.put(path, buildFieldInfo(value, path, schema));
+                }
             } else if (value instanceof List) {
-                out.put(path, buildListFieldInfo((List<?>) value, path));
-            } else if (shouldRecurse(value)) {
-                collectFields(value, path, out, seen, depth + 1);
+                if (matchesPrefix(path, prefixes)) {
+                    out.put(path, buildListFieldInfo((List<?>) value, path));
+                }
+            } else if (shouldRecurse(value)
+                    && frame.depth < maxDepth
+                    && mayContainPrefix(path, prefixes)
+                    && seen.add(value)
+                    && (skip == null || !skip.contains(path))) {
+                stack.push(new TraversalFrame(value, path, frame.depth + 1));
             }
         }
     }
 
-    private static void addVirtualFields(Object root, Map<String, FieldInfo> out) {
-        List<String> excludeList = getExcludeList(root);
-        if (excludeList != null) {
-            FieldInfo info = new FieldInfo("list<string>", excludeList);
-            info.isList = true;
-            info.length = excludeList.size();
-            out.put(VIRTUAL_EXCLUDE_PATTERNS, info);
+    private static Set<String> identicalSubtrees(
+            Object rootA,
+            MerkleIndex indexA,
+            Object rootB,
+            MerkleIndex indexB,
+            List<String> prefixes,
+            int maxDepth
+    ) {
+        Set<String> identical = new HashSet<>();
+        if (rootA == null || rootB == null) {
+            return identical;
+        }
+        Map<Object, Boolean> seen = new IdentityHashMap<>();
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{rootA, rootB, "", 0});
+        while (!stack.isEmpty()) {
+            Object[] pair = stack.pop();
+            Object a = pair[0];
+            Object b = pair[1];
+            String prefix = (String) pair[2];
+            int depth = (Integer) pair[3];
+            if (a.getClass() != b.getClass()) {
+                continue;
+            }
+            for (Field field : ClassMeta.of(a.getClass()).instanceFields) {
+                Object valueA;
+                Object valueB;
+                try {
+                    valueA = field.get(a);
+                    valueB = field.get(b);
+                } catch (IllegalAccessException ex) {
+                    continue;
+                }
+                if (!shouldRecurse(valueA) || !shouldRecurse(valueB)) {
+                    continue;
+                }
+                String path = prefix.isEmpty() ? field.getName() : prefix + "." + field.getName();
+                if (indexA.identical(valueA, indexB, valueB)) {
+                    identical.add(path);
+                } else if (depth < maxDepth && mayContainPrefix(path, prefixes) && seen.put(valueA, Boolean.TRUE) == null) {
+                    stack.push(new Object[]{valueA, valueB, path, depth + 1});
+                }
+            }
+        }
+        return identical;
+    }
+
+    private static boolean isUnder(String path, Set<String> subtrees) {
+        if (subtrees.isEmpty()) {
+            return false;
+        }
+        for (int dot = path.indexOf('.'); dot >= 0; dot = path.indexOf('.', dot + 1)) {
+            if (subtrees.contains(path.substring(0, dot))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, String> collectSubtreeHashes(Object root, MerkleIndex index, List<String> prefixes,
+                                                            int maxDepth) {
+        Map<String, String> hashes = new LinkedHashMap<>();
+        if (!shouldRecurse(root)) {
+            return hashes;
+        }
+        if (prefixes == null) {
+            hashes.put("", index.hash(root));
+        }
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        seen.add(root);
+        Deque<TraversalFrame> stack = new ArrayDeque<>();
+        stack.push(new TraversalFrame(root, "", 0));
+        while (!stack.isEmpty()) {
+            TraversalFrame frame = stack.peek();
+            if (frame.index >= frame.fields.size()) {
+                stack.pop();
+                continue;
+            }
+            Field field = frame.fields.get(frame.index++);
+            String path = frame.path.isEmpty() ? field.getName() : frame.path + "." + field.getName();
+            Object value;
+            try {
+                value = field.get(frame.obj);
+            } catch (IllegalAccessException ex) {
+                continue;
+            }
+            if (shouldRecurse(value)
+                    && frame.depth < maxDepth
+                    && mayContainPrefix(path, prefixes)
+                    && seen.add(value)) {
+                if (matchesPrefix(path, prefixes)) {
+                    hashes.put(path, index.hash(value));
+                }
+                stack.push(new TraversalFrame(value, path, frame.depth + 1));
+            }
+        }
+        return hashes;
+    }
+
+    private static MerkleIndex merkleIndex(Args args, Object root) {
+        if (args.configs != null) {
+            MerkleIndex cached = args.configs.merkle(root);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        return MerkleIndex.build(root);
+    }
+
+    private static List<String> parsePrefixes(String option) {
+        if (option == null) {
+            return null;
+        }
+        List<String> prefixes = new ArrayList<>();
+        for (String part : option.split(",")) {
+            String trimmed = part.trim();
+            if (!trimmed.isEmpty()) {
+                prefixes.add(trimmed);
+            }
+        }
+        return prefixes.isEmpty() ? null : prefixes;
+    }
+
+    private static boolean matchesPrefix(String path, List<String> prefixes) {
+        if (prefixes == null) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean mayContainPrefix(String path, List<String> prefixes) {
+        if (prefixes == null) {
+            return true;
+        }
+        String base = path + ".";
+        for (String prefix : prefixes) {
+            if (base.startsWith(prefix) || prefix.startsWith(base)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addVirtualFields(Object root, Map<String, FieldInfo> out) {
+        List<String> excludeList = getExcludeList(root);
+        if (excludeList != null) {
+            FieldInfo info = new FieldInfo("list<string>", excludeList);
+            info.isList = true;
+            info.length = excludeList.size();
+            out.put(VIRTUAL_EXCLUDE_PATTERNS, info);
 
             FieldInfo urlInfo = new FieldInfo("list<string>", excludeList);
             urlInfo.isList = true;
@@ -836,21 +2906,8 @@ public class ConfigBuilder {
         return map;
     }
 
-    private static void applyCustomSearchPatches(Object root, JsonArray ops, List<String> warnings) throws CliException {
-        Object custom = getNestedField(root, "mCustomSearchConfig");
-        if (custom == null) {
-            throw new CliException(ERROR_VALIDATION, 1, "Custom search config not found", null);
-        }
-
-        Object listObj = getNestedField(custom, "mSearches");
-        List<Object> list;
-        if (listObj instanceof List) {
-            list = (List<Object>) listObj;
-        } else {
-            list = new ArrayList<>();
-            setNestedField(custom, "mSearches", list);
-        }
-
+    private static List<RuleOp> compileCustomSearchOps(JsonArray ops) throws CliException {
+        List<RuleOp> compiled = new ArrayList<>();
         for (JsonElement opEl : ops) {
             if (!opEl.isJsonObject()) {
                 throw new CliException(ERROR_VALIDATION, 1, "Invalid custom search op entry", null);
@@ -863,7 +2920,7 @@ public class ConfigBuilder {
             String opLower = op.toLowerCase(Locale.ROOT);
 
             if ("clear".equals(opLower)) {
-                list.clear();
+                compiled.add(new RuleOp(RuleOp.CLEAR, null, null));
                 continue;
             }
 
@@ -872,10 +2929,7 @@ public class ConfigBuilder {
                 if (name == null) {
                     throw new CliException(ERROR_VALIDATION, 1, "Custom search remove requires name", null);
                 }
-                boolean removed = removeCustomSearchByName(list, name);
-                if (!removed) {
-                    warnings.add("Custom search not found for removal: " + name);
-                }
+                compiled.add(new RuleOp(RuleOp.REMOVE, name, null));
                 continue;
             }
 
@@ -895,26 +2949,22 @@ public class ConfigBuilder {
                 Object searchDataType = parseSearchDataType(dataType == null ? "TEXT" : dataType);
                 Object searchScope = parseSearchScope(scope == null ? "HTML" : scope);
                 boolean isCaseSensitive = caseSensitive != null && caseSensitive;
-                Object rule = newCustomSearchInfo(name, searchMode, searchDataType, query, isCaseSensitive, searchScope, xpath);
-                removeCustomSearchByName(list, name);
-                list.add(rule);
+                compiled.add(new RuleOp(RuleOp.ADD, name, () ->
+                        newCustomSearchInfo(name, searchMode, searchDataType, query, isCaseSensitive, searchScope, xpath)));
                 continue;
             }
 
             throw new CliException(ERROR_VALIDATION, 1, "Unsupported custom search op: " + op, null);
         }
+        return compiled;
     }
 
-    private static boolean removeCustomSearchByName(List<Object> list, String name) {
-        for (int i = 0; i < list.size(); i++) {
-            Object rule = list.get(i);
-            Object ruleName = getNestedField(rule, "mName");
-            if (ruleName != null && name.equals(ruleName.toString())) {
-                list.remove(i);
-                return true;
-            }
+    private static void applyCustomSearchPatches(Object root, List<RuleOp> ops, List<String> warnings) throws CliException {
+        Object custom = getNestedField(root, "mCustomSearchConfig");
+        if (custom == null) {
+            throw new CliException(ERROR_VALIDATION, 1, "Custom search config not found", null);
         }
-        return false;
+        applyRuleOps(custom, "mSearches", ops, "Custom search", warnings);
     }
 
     private static Object newCustomSearchInfo(
@@ -1021,21 +3071,8 @@ public class ConfigBuilder {
         return map;
     }
 
-    private static void applyCustomJavaScriptPatches(Object root, JsonArray ops, List<String> warnings) throws CliException {
-        Object custom = getNestedField(root, "mCustomJavaScriptConfig");
-        if (custom == null) {
-            throw new CliException(ERROR_VALIDATION, 1, "Custom JavaScript config not found", null);
-        }
-
-        Object listObj = getNestedField(custom, "mJsSnippets");
-        List<Object> list;
-        if (listObj instanceof List) {
-            list = (List<Object>) listObj;
-        } else {
-            list = new ArrayList<>();
-            setNestedField(custom, "mJsSnippets", list);
-        }
-
+    private static List<RuleOp> compileCustomJavaScriptOps(JsonArray ops) throws CliException {
+        List<RuleOp> compiled = new ArrayList<>();
         for (JsonElement opEl : ops) {
             if (!opEl.isJsonObject()) {
                 throw new CliException(ERROR_VALIDATION, 1, "Invalid custom JavaScript op entry", null);
@@ -1048,7 +3085,7 @@ public class ConfigBuilder {
             String opLower = op.toLowerCase(Locale.ROOT);
 
             if ("clear".equals(opLower)) {
-                list.clear();
+                compiled.add(new RuleOp(RuleOp.CLEAR, null, null));
                 continue;
             }
 
@@ -1057,10 +3094,7 @@ public class ConfigBuilder {
                 if (name == null) {
                     throw new CliException(ERROR_VALIDATION, 1, "Custom JavaScript remove requires name", null);
                 }
-                boolean removed = removeCustomJavaScriptByName(list, name);
-                if (!removed) {
-                    warnings.add("Custom JavaScript not found for removal: " + name);
-                }
+                compiled.add(new RuleOp(RuleOp.REMOVE, name, null));
                 continue;
             }
 
@@ -1077,26 +3111,22 @@ public class ConfigBuilder {
                 Object scriptType = parseCustomJavaScriptType(type == null ? "EXTRACTION" : type);
                 int timeoutSecs = timeout == null ? 10 : timeout;
                 String contentTypeValue = contentTypes == null ? "text/html" : contentTypes;
-                Object rule = newCustomJavaScriptInfo(name, scriptType, javaScript, timeoutSecs, contentTypeValue);
-                removeCustomJavaScriptByName(list, name);
-                list.add(rule);
+                compiled.add(new RuleOp(RuleOp.ADD, name, () ->
+                        newCustomJavaScriptInfo(name, scriptType, javaScript, timeoutSecs, contentTypeValue)));
                 continue;
             }
 
             throw new CliException(ERROR_VALIDATION, 1, "Unsupported custom JavaScript op: " + op, null);
         }
+        return compiled;
     }
 
-    private static boolean removeCustomJavaScriptByName(List<Object> list, String name) {
-        for (int i = 0; i < list.size(); i++) {
-            Object rule = list.get(i);
-            Object ruleName = getNestedField(rule, "mName");
-            if (ruleName != null && name.equals(ruleName.toString())) {
-                list.remove(i);
-                return true;
-            }
+    private static void applyCustomJavaScriptPatches(Object root, List<RuleOp> ops, List<String> warnings) throws CliException {
+        Object custom = getNestedField(root, "mCustomJavaScriptConfig");
+        if (custom == null) {
+            throw new CliException(ERROR_VALIDATION, 1, "Custom JavaScript config not found", null);
         }
-        return false;
+        applyRuleOps(custom, "mJsSnippets", ops, "Custom JavaScript", warnings);
     }
 
     private static Object newCustomJavaScriptInfo(
@@ -1140,21 +3170,8 @@ public class ConfigBuilder {
         }
     }
 
-    private static void applyExtractionPatches(Object root, JsonArray ops, List<String> warnings) throws CliException {
-        Object custom = getNestedField(root, "mCustomExtractionConfig");
-        if (custom == null) {
-            throw new CliException(ERROR_VALIDATION, 1, "Custom extraction config not found", null);
-        }
-
-        Object listObj = getNestedField(custom, "mFilters");
-        List<Object> list;
-        if (listObj instanceof List) {
-            list = (List<Object>) listObj;
-        } else {
-            list = new ArrayList<>();
-            setNestedField(custom, "mFilters", list);
-        }
-
+    private static List<RuleOp> compileExtractionOps(JsonArray ops) throws CliException {
+        List<RuleOp> compiled = new ArrayList<>();
         for (JsonElement opEl : ops) {
             if (!opEl.isJsonObject()) {
                 throw new CliException(ERROR_VALIDATION, 1, "Invalid extraction op entry", null);
@@ -1167,7 +3184,7 @@ public class ConfigBuilder {
             String opLower = op.toLowerCase(Locale.ROOT);
 
             if ("clear".equals(opLower)) {
-                list.clear();
+                compiled.add(new RuleOp(RuleOp.CLEAR, null, null));
                 continue;
             }
 
@@ -1176,10 +3193,7 @@ public class ConfigBuilder {
                 if (name == null) {
                     throw new CliException(ERROR_VALIDATION, 1, "Extraction remove requires name", null);
                 }
-                boolean removed = removeExtractionByName(list, name);
-                if (!removed) {
-                    warnings.add("Extraction not found for removal: " + name);
-                }
+                compiled.add(new RuleOp(RuleOp.REMOVE, name, null));
                 continue;
             }
 
@@ -1195,17 +3209,51 @@ public class ConfigBuilder {
 
                 Object extractionType = parseExtractionType(selectorType);
                 Object dataType = parseDataType(extractMode);
-                Object rule = newCustomExtractionInfo(name, extractionType, dataType, selector, attribute);
-                removeExtractionByName(list, name);
-                list.add(rule);
+                compiled.add(new RuleOp(RuleOp.ADD, name, () ->
+                        newCustomExtractionInfo(name, extractionType, dataType, selector, attribute)));
                 continue;
             }
 
             throw new CliException(ERROR_VALIDATION, 1, "Unsupported extraction op: " + op, null);
         }
+        return compiled;
+    }
+
+    private static void applyExtractionPatches(Object root, List<RuleOp> ops, List<String> warnings) throws CliException {
+        Object custom = getNestedField(root, "mCustomExtractionConfig");
+        if (custom == null) {
+            throw new CliException(ERROR_VALIDATION, 1, "Custom extraction config not found", null);
+        }
+        applyRuleOps(custom, "mFilters", ops, "Extraction", warnings);
+    }
+
+    private static void applyRuleOps(Object custom, String listField, List<RuleOp> ops, String label,
+                                     List<String> warnings) throws CliException {
+        Object listObj = getNestedField(custom, listField);
+        List<Object> list;
+        if (listObj instanceof List) {
+            list = (List<Object>) listObj;
+        } else {
+            list = new ArrayList<>();
+            setNestedField(custom, listField, list);
+        }
+
+        for (RuleOp op : ops) {
+            if (op.kind == RuleOp.CLEAR) {
+                list.clear();
+            } else if (op.kind == RuleOp.REMOVE) {
+                if (!removeRuleByName(list, op.name)) {
+                    warnings.add(label + " not found for removal: " + op.name);
+                }
+            } else {
+                Object rule = op.factory.create();
+                removeRuleByName(list, op.name);
+                list.add(rule);
+            }
+        }
     }
 
-    private static boolean removeExtractionByName(List<Object> list, String name) {
+    private static boolean removeRuleByName(List<Object> list, String name) {
         for (int i = 0; i < list.size(); i++) {
             Object rule = list.get(i);
             Object ruleName = getNestedField(rule, "mName");
@@ -1286,13 +3334,19 @@ public class ConfigBuilder {
         if (rawString.trim().isEmpty()) {
             return new ArrayList<>();
         }
-        String[] lines = rawString.split("\\r?\\n");
         List<String> values = new ArrayList<>();
-        for (String line : lines) {
-            String trimmed = line.trim();
+        int start = 0;
+        int length = rawString.length();
+        while (start <= length) {
+            int end = rawString.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            String trimmed = rawString.substring(start, end).trim();
             if (!trimmed.isEmpty()) {
                 values.add(trimmed);
             }
+            start = end + 1;
         }
         return values;
     }
@@ -1302,16 +3356,8 @@ public class ConfigBuilder {
         if (manager == null) {
             throw new CliException(ERROR_VALIDATION, 1, "Exclude manager not found", null);
         }
-        StringBuilder builder = new StringBuilder();
-        if (list != null) {
-            for (int i = 0; i < list.size(); i++) {
-                if (i > 0) {
-                    builder.append(System.lineSeparator());
-                }
-                builder.append(list.get(i));
-            }
-        }
-        setNestedField(manager, "mRawExcludeListString", builder.toString());
+        String value = list == null ? "" : String.join(System.lineSeparator(), list);
+        setNestedField(manager, "mRawExcludeListString", value);
     }
 
     private static Object getExcludeManager(Object root) {
@@ -1327,12 +3373,8 @@ public class ConfigBuilder {
     }
 
     private static Integer getMaxUrls(Object root) {
-        Object crawlConfig = getNestedField(root, "mCrawlConfig");
-        if (crawlConfig == null) {
-            return null;
-        }
-        Object limitFlag = getNestedField(crawlConfig, "mLimitSearchTotal");
-        Object limitValue = getNestedField(crawlConfig, "mSearchTotalLimit");
+        Object limitFlag = readPath(root, "mCrawlConfig.mLimitSearchTotal");
+        Object limitValue = readPath(root, "mCrawlConfig.mSearchTotalLimit");
         if (!(limitFlag instanceof Boolean) || !(limitValue instanceof Number)) {
             return null;
         }
@@ -1352,17 +3394,13 @@ public class ConfigBuilder {
         if (!(limitFlag instanceof Boolean) || !(limitValue instanceof Number)) {
             throw new CliException(ERROR_VALIDATION, 1, "mMaxUrls is not supported in this config version", null);
         }
-        setNestedField(crawlConfig, "mLimitSearchTotal", value != 0);
-        setNestedField(crawlConfig, "mSearchTotalLimit", value);
+        writePath(root, "mCrawlConfig.mLimitSearchTotal", value != 0);
+        writePath(root, "mCrawlConfig.mSearchTotalLimit", value);
     }
 
     private static Integer getMaxDepth(Object root) {
-        Object crawlConfig = getNestedField(root, "mCrawlConfig");
-        if (crawlConfig == null) {
-            return null;
-        }
-        Object limitFlag = getNestedField(crawlConfig, "mLimitSearchDepth");
-        Object limitValue = getNestedField(crawlConfig, "mSearchDepthLimit");
+        Object limitFlag = readPath(root, "mCrawlConfig.mLimitSearchDepth");
+        Object limitValue = readPath(root, "mCrawlConfig.mSearchDepthLimit");
         if (!(limitFlag instanceof Boolean) || !(limitValue instanceof Number)) {
             return null;
         }
@@ -1382,8 +3420,8 @@ public class ConfigBuilder {
         if (!(limitFlag instanceof Boolean) || !(limitValue instanceof Number)) {
             throw new CliException(ERROR_VALIDATION, 1, "mMaxDepth is not supported in this config version", null);
         }
-        setNestedField(crawlConfig, "mLimitSearchDepth", value != 0);
-        setNestedField(crawlConfig, "mSearchDepthLimit", value);
+        writePath(root, "mCrawlConfig.mLimitSearchDepth", value != 0);
+        writePath(root, "mCrawlConfig.mSearchDepthLimit", value);
     }
 
     private static String getRenderingMode(Object root) {
@@ -1413,7 +3451,6 @@ public class ConfigBuilder {
             String normalized = mode.toUpperCase(Locale.ROOT);
             try {
                 Object enumValue = Enum.valueOf((Class<Enum>) field.getType(), normalized);
-                field.setAccessible(true);
                 field.set(crawlConfig, enumValue);
                 return;
             } catch (Exception ex) {
@@ -1426,7 +3463,6 @@ public class ConfigBuilder {
             String mapped = mapRenderingToCrawlerMode(mode);
             try {
                 Object enumValue = Enum.valueOf((Class<Enum>) field.getType(), mapped);
-                field.setAccessible(true);
                 field.set(crawlConfig, enumValue);
                 return;
             } catch (Exception ex) {
@@ -1465,66 +3501,6 @@ public class ConfigBuilder {
         throw new CliException(ERROR_VALIDATION, 1, "Invalid rendering mode: " + mode, null);
     }
 
-    private static List<String> applyListPatch(List<String> before, JsonElement patch, List<String> warnings) throws CliException {
-        List<String> base = before == null ? new ArrayList<>() : new ArrayList<>(before);
-        if (patch == null || patch.isJsonNull()) {
-            throw new CliException(ERROR_VALIDATION, 1, "List patch cannot be null", null);
-        }
-
-        if (patch.isJsonArray()) {
-            return jsonArrayToList(patch.getAsJsonArray());
-        }
-
-        if (!patch.isJsonObject()) {
-            throw new CliException(ERROR_VALIDATION, 1, "Invalid list patch format", null);
-        }
-
-        JsonObject opObj = patch.getAsJsonObject();
-        String op = getJsonString(opObj, "op");
-        if (op == null) {
-            throw new CliException(ERROR_VALIDATION, 1, "List patch missing op", null);
-        }
-        String opLower = op.toLowerCase(Locale.ROOT);
-
-        if ("clear".equals(opLower)) {
-            return new ArrayList<>();
-        }
-
-        if ("set".equals(opLower)) {
-            JsonElement values = opObj.get("values");
-            if (values == null || !values.isJsonArray()) {
-                throw new CliException(ERROR_VALIDATION, 1, "List patch set requires values array", null);
-            }
-            return jsonArrayToList(values.getAsJsonArray());
-        }
-
-        JsonElement valuesEl = opObj.get("values");
-        if (valuesEl == null || !valuesEl.isJsonArray()) {
-            throw new CliException(ERROR_VALIDATION, 1, "List patch requires values array", null);
-        }
-        List<String> values = jsonArrayToList(valuesEl.getAsJsonArray());
-
-        if ("append".equals(opLower)) {
-            base.addAll(values);
-            return base;
-        }
-
-        if ("prepend".equals(opLower)) {
-            List<String> out = new ArrayList<>(values);
-            out.addAll(base);
-            return out;
-        }
-
-        if ("remove".equals(opLower)) {
-            for (String value : values) {
-                base.removeIf(item -> Objects.equals(item, value));
-            }
-            return base;
-        }
-
-        throw new CliException(ERROR_VALIDATION, 1, "Unsupported list patch op: " + op, null);
-    }
-
     private static List<String> jsonArrayToList(JsonArray array) throws CliException {
         List<String> values = new ArrayList<>();
         for (JsonElement element : array) {
@@ -1540,62 +3516,36 @@ public class ConfigBuilder {
         return values;
     }
 
-    private static Object resolvePath(Object root, String path) throws CliException {
+    private static FieldPath compilePath(Object root, String path) throws CliException {
         if (root == null) {
             throw new CliException(ERROR_VALIDATION, 1, "Config root is null", null);
         }
-        String[] parts = path.split("\\.");
-        Object current = root;
-        for (int i = 0; i < parts.length - 1; i++) {
-            String part = parts[i];
-            Field field = findField(current.getClass(), part);
-            field.setAccessible(true);
-            Object next;
-            try {
-                next = field.get(current);
-            } catch (IllegalAccessException ex) {
-                throw new CliException(ERROR_VALIDATION, 1, "Unable to read field: " + part, null);
-            }
-            if (next == null) {
-                throw new CliException(ERROR_VALIDATION, 1, "Null field encountered at: " + part, null);
-            }
-            current = next;
-        }
-        return current;
+        return FieldPath.of(root.getClass(), path);
     }
 
-    private static String leafName(String path) {
-        int idx = path.lastIndexOf('.');
-        if (idx == -1) {
-            return path;
+    private static Object readPath(Object root, String path) {
+        if (root == null) {
+            return null;
         }
-        return path.substring(idx + 1);
+        return FieldPath.of(root.getClass(), path).read(root);
     }
 
-    private static Field findField(Class<?> cls, String name) throws CliException {
-        for (Field field : getAllFields(cls)) {
-            if (field.getName().equals(name)) {
-                return field;
-            }
-        }
-        if ("mExcludeManager".equals(name)) {
-            for (Field field : getAllFields(cls)) {
-                if (field.getName().equals("mExcludeManger")) {
-                    return field;
-                }
-            }
+    private static void writePath(Object root, String path, Object value) throws CliException {
+        FieldPath compiled = compilePath(root, path);
+        Object parent = compiled.parent(root);
+        try {
+            compiled.leaf(parent).set(parent, value);
+        } catch (IllegalAccessException | IllegalArgumentException ex) {
+            throw new CliException(ERROR_VALIDATION, 1, "Unable to set field: " + path, null);
         }
-        throw new CliException(ERROR_VALIDATION, 1, "Field not found: " + name, null);
     }
 
-    private static List<Field> getAllFields(Class<?> cls) {
-        List<Field> fields = new ArrayList<>();
-        Class<?> current = cls;
-        while (current != null && current != Object.class) {
-            fields.addAll(Arrays.asList(current.getDeclaredFields()));
-            current = current.getSuperclass();
+    private static Field findField(Class<?> cls, String name) throws CliException {
+        Field field = ClassMeta.of(cls).field(name);
+        if (field == null) {
+            throw new CliException(ERROR_VALIDATION, 1, "Field not found: " + name, null);
         }
-        return fields;
+        return field;
     }
 
     private static Object coerceValue(Class<?> type, JsonElement value, String path) throws CliException {
@@ -1690,12 +3640,12 @@ public class ConfigBuilder {
         return fields;
     }
 
-    private static FieldInfo buildFieldInfo(Object value, String path) {
-        String type = typeNameFor(value.getClass());
+    private static FieldInfo buildFieldInfo(Object value, String path, ConfigSchema schema) {
+        String type = schema.typeName(value.getClass());
         Object output = value instanceof Enum ? mapEnumName(value) : value;
         FieldInfo info = new FieldInfo(type, output);
         if (value instanceof Enum) {
-            info.enumOptions = enumOptions(value.getClass());
+            info.enumOptions = schema.enumOptions(value.getClass());
         }
         return info;
     }
@@ -1858,44 +3808,17 @@ public class ConfigBuilder {
         if (obj == null || fieldName == null) {
             return false;
         }
-        for (Field candidate : getAllFields(obj.getClass())) {
-            if (candidate.getName().equals(fieldName)) {
-                return true;
-            }
-        }
-        if ("mExcludeManager".equals(fieldName)) {
-            for (Field candidate : getAllFields(obj.getClass())) {
-                if (candidate.getName().equals("mExcludeManger")) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return ClassMeta.of(obj.getClass()).field(fieldName) != null;
     }
 
     private static Object getNestedField(Object obj, String fieldName) {
         if (obj == null || fieldName == null) {
             return null;
         }
-        Field field = null;
-        for (Field candidate : getAllFields(obj.getClass())) {
-            if (candidate.getName().equals(fieldName)) {
-                field = candidate;
-                break;
-            }
-        }
-        if (field == null && "mExcludeManager".equals(fieldName)) {
-            for (Field candidate : getAllFields(obj.getClass())) {
-                if (candidate.getName().equals("mExcludeManger")) {
-                    field = candidate;
-                    break;
-                }
-            }
-        }
+        FieldAccessor field = ClassMeta.of(obj.getClass()).accessor(fieldName);
         if (field == null) {
             return null;
         }
-        field.setAccessible(true);
         try {
             return field.get(obj);
         } catch (IllegalAccessException ex) {
@@ -1907,25 +3830,10 @@ public class ConfigBuilder {
         if (obj == null || fieldName == null) {
             throw new IllegalStateException("Cannot set field on null object");
         }
-        Field field = null;
-        for (Field candidate : getAllFields(obj.getClass())) {
-            if (candidate.getName().equals(fieldName)) {
-                field = candidate;
-                break;
-            }
-        }
-        if (field == null && "mExcludeManager".equals(fieldName)) {
-            for (Field candidate : getAllFields(obj.getClass())) {
-                if (candidate.getName().equals("mExcludeManger")) {
-                    field = candidate;
-                    break;
-                }
-            }
-        }
+        FieldAccessor field = ClassMeta.of(obj.getClass()).accessor(fieldName);
         if (field == null) {
             throw new IllegalStateException("Field not found: " + fieldName);
         }
-        field.setAccessible(true);
         try {
             field.set(obj, value);
         } catch (IllegalAccessException ex) {
@@ -1955,41 +3863,126 @@ public class ConfigBuilder {
         return values;
     }
 
-    private static List<String> listDiffAdded(List<String> listA, List<String> listB) {
-        List<String> added = new ArrayList<>();
-        Set<String> setA = new LinkedHashSet<>(listA);
-        for (String item : listB) {
-            if (!setA.contains(item)) {
-                added.add(item);
-            }
+    private static String parseListDiffMode(Args args) throws CliException {
+        String mode = args.options.getOrDefault("list-diff", LIST_DIFF_SET);
+        if (!LIST_DIFF_MODES.contains(mode)) {
+            throw new CliException(ERROR_VALIDATION, 1, "Invalid --list-diff mode: " + mode, null);
         }
-        return added;
+        return mode;
     }
 
-    private static List<String> listDiffRemoved(List<String> listA, List<String> listB) {
-        List<String> removed = new ArrayList<>();
-        Set<String> setB = new LinkedHashSet<>(listB);
-        for (String item : listA) {
-            if (!setB.contains(item)) {
-                removed.add(item);
+    private static void writeListDifference(JsonWriter out, List<String> listA, List<String> listB, String mode)
+            throws IOException {
+        if (LIST_DIFF_SET.equals(mode)) {
+            Set<String> setA = new HashSet<>(listA);
+            Set<String> setB = new HashSet<>(listB);
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            List<String> unchanged = new ArrayList<>();
+            for (String item : listB) {
+                if (!setA.contains(item)) {
+                    added.add(item);
+                }
             }
+            for (String item : listA) {
+                (setB.contains(item) ? unchanged : removed).add(item);
+            }
+            out.name("added");
+            writeJsonValue(out, added);
+            out.name("removed");
+            writeJsonValue(out, removed);
+            out.name("unchanged");
+            writeJsonValue(out, unchanged);
+            return;
         }
-        return removed;
-    }
 
-    private static List<String> listDiffUnchanged(List<String> listA, List<String> listB) {
-        List<String> unchanged = new ArrayList<>();
-        Set<String> setB = new LinkedHashSet<>(listB);
-        for (String item : listA) {
-            if (setB.contains(item)) {
-                unchanged.add(item);
+        List<ListEdit> edits = LIST_DIFF_EDITS.equals(mode) ? ListEdit.script(listA, listB, MAX_LIST_EDITS) : null;
+        if (edits != null) {
+            int removed = 0;
+            int added = 0;
+            Map<String, Deque<Integer>> insertedAt = new HashMap<>();
+            for (ListEdit edit : edits) {
+                if (edit.insert) {
+                    added += edit.values.size();
+                    for (int i = 0; i < edit.values.size(); i++) {
+                        insertedAt.computeIfAbsent(edit.values.get(i), key -> new ArrayDeque<>()).add(edit.indexB + i);
+                    }
+                } else {
+                    removed += edit.values.size();
+                }
+            }
+            out.name("mode").value(LIST_DIFF_EDITS);
+            out.name("edits").beginArray();
+            for (ListEdit edit : edits) {
+                out.beginObject();
+                out.name("op").value(edit.insert ? "insert" : "delete");
+                out.name("indexA").value(edit.indexA);
+                out.name("indexB").value(edit.indexB);
+                out.name("values");
+                writeJsonValue(out, edit.values);
+                out.endObject();
+            }
+            out.endArray();
+            out.name("moved").beginArray();
+            for (ListEdit edit : edits) {
+                if (edit.insert) {
+                    continue;
+                }
+                for (int i = 0; i < edit.values.size(); i++) {
+                    Deque<Integer> targets = insertedAt.get(edit.values.get(i));
+                    if (targets != null && !targets.isEmpty()) {
+                        out.beginObject();
+                        out.name("value").value(edit.values.get(i));
+                        out.name("from").value(edit.indexA + i);
+                        out.name("to").value(targets.poll());
+                        out.endObject();
+                    }
+                }
             }
+            out.endArray();
+            out.name("addedCount").value(added);
+            out.name("removedCount").value(removed);
+            out.name("unchangedCount").value(listA.size() - removed);
+            return;
         }
-        return unchanged;
-    }
 
-    private static String readConfigVersion(Object root) {
-        Object version = getNestedField(root, "mConfigVersion");
+        Map<String, int[]> remaining = new HashMap<>();
+        for (String item : listA) {
+            remaining.computeIfAbsent(item, key -> new int[1])[0]++;
+        }
+        List<String> added = new ArrayList<>();
+        for (String item : listB) {
+            int[] count = remaining.get(item);
+            if (count != null && count[0] > 0) {
+                count[0]--;
+            } else {
+                added.add(item);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String item : listA) {
+            int[] count = remaining.get(item);
+            if (count[0] > 0) {
+                count[0]--;
+                removed.add(item);
+            }
+        }
+        if (LIST_DIFF_COUNTS.equals(mode)) {
+            out.name("mode").value(LIST_DIFF_COUNTS);
+        } else {
+            out.name("mode").value(LIST_DIFF_MULTISET);
+            out.name("added");
+            writeJsonValue(out, added);
+            out.name("removed");
+            writeJsonValue(out, removed);
+        }
+        out.name("addedCount").value(added.size());
+        out.name("removedCount").value(removed.size());
+        out.name("unchangedCount").value(listA.size() - removed.size());
+    }
+
+    private static String readConfigVersion(Object root) {
+        Object version = getNestedField(root, "mConfigVersion");
         if (version == null) {
             return null;
         }
@@ -1997,41 +3990,48 @@ public class ConfigBuilder {
     }
 
     private static String readSfVersion() {
-        String classpath = System.getProperty("java.class.path");
-        if (classpath == null) {
+        Path jar = locateSfJar();
+        if (jar == null) {
             return null;
         }
-        String separator = System.getProperty("path.separator");
-        if (separator == null) {
-            separator = ";";
+        return SfVersionCache.lookup(jar);
+    }
+
+    private static Path locateSfJar() {
+        for (Path entry : classpathEntries()) {
+            if (entry.toString().endsWith(SF_JAR_NAME) && Files.isRegularFile(entry)) {
+                return entry;
+            }
         }
-        String[] entries = classpath.split(Pattern.quote(separator));
-        for (String entry : entries) {
-            if (!entry.endsWith("ScreamingFrogSEOSpider.jar")) {
-                continue;
+        Path sfDir = sfInstallDir(null);
+        if (sfDir != null && Files.isRegularFile(sfDir.resolve(SF_JAR_NAME))) {
+            return sfDir.resolve(SF_JAR_NAME);
+        }
+        return null;
+    }
+
+    private static String readManifestVersion(Path path) {
+        try (JarFile jar = new JarFile(path.toFile())) {
+            Manifest manifest = jar.getManifest();
+            if (manifest == null) {
+                return null;
             }
-            try (JarFile jar = new JarFile(entry)) {
-                Manifest manifest = jar.getManifest();
-                if (manifest == null) {
-                    return null;
-                }
-                Attributes attributes = manifest.getMainAttributes();
-                List<String> keys = Arrays.asList(
-                        "Implementation-Version",
-                        "Specification-Version",
-                        "Bundle-Version",
-                        "Version",
-                        "ScreamingFrog-Version"
-                );
-                for (String key : keys) {
-                    String value = attributes.getValue(key);
-                    if (value != null && !value.trim().isEmpty()) {
-                        return value.trim();
-                    }
+            Attributes attributes = manifest.getMainAttributes();
+            List<String> keys = Arrays.asList(
+                    "Implementation-Version",
+                    "Specification-Version",
+                    "Bundle-Version",
+                    "Version",
+                    "ScreamingFrog-Version"
+            );
+            for (String key : keys) {
+                String value = attributes.getValue(key);
+                if (value != null && !value.trim().isEmpty()) {
+                    return value.trim();
                 }
-            } catch (Exception ex) {
-                return null;
             }
+        } catch (Exception ex) {
+            return null;
         }
         return null;
     }
@@ -2265,34 +4265,3135 @@ public class ConfigBuilder {
     }
 
     private static void writeJson(Object payload) {
-        System.out.println(GSON.toJson(payload));
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, System.out.charset()));
+            writeJson(writer, payload);
+            writer.write(System.lineSeparator());
+            writer.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static void writeJson(Writer writer, Object payload) throws IOException {
+        JsonWriter out = new JsonWriter(writer);
+        out.setSerializeNulls(true);
+        out.setHtmlSafe(true);
+        writeJsonValue(out, payload);
+        out.flush();
+    }
+
+    private static void writeJsonValue(JsonWriter out, Object value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else if (value instanceof JsonStreamable) {
+            ((JsonStreamable) value).writeTo(out);
+        } else if (value instanceof Map) {
+            out.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                out.name(String.valueOf(entry.getKey()));
+                writeJsonValue(out, entry.getValue());
+            }
+            out.endObject();
+        } else if (value instanceof Collection) {
+            out.beginArray();
+            for (Object item : (Collection<?>) value) {
+                writeJsonValue(out, item);
+            }
+            out.endArray();
+        } else {
+            GSON.toJson(value, value.getClass(), out);
+        }
     }
 
     private static void writeError(CliException ex) {
+        writeJson(errorPayload(ex));
+    }
+
+    private static Map<String, Object> errorPayload(CliException ex) {
         Map<String, Object> error = new LinkedHashMap<>();
         error.put("success", false);
         error.put("error", ex.getMessage());
         error.put("errorType", ex.errorType);
         error.put("details", ex.details == null ? new LinkedHashMap<>() : ex.details);
-        writeJson(error);
+        return error;
+    }
+
+    private static CliException unexpectedError(Exception ex) {
+        Map<String, Object> details = new LinkedHashMap<>();
+        details.put("exception", ex.getClass().getName());
+        details.put("message", ex.getMessage());
+        return new CliException(ERROR_UNKNOWN, 99, "Unexpected error", details);
     }
 
     private static class Args {
         String command;
         Map<String, String> options = new HashMap<>();
         Set<String> flags = new HashSet<>();
+        ConfigCache configs;
+        IoStats io = new IoStats();
+        boolean stdin;
     }
 
-    private static class FieldInfo {
-        String type;
-        Object value;
-        List<String> enumOptions;
-        Integer length;
-        boolean isList;
+    private static class IoStats {
+        String readMode;
+        long bytesRead;
+        long readNanos;
+        long bytesWritten;
+        long writeNanos;
+        Boolean atomicWrite;
 
-        FieldInfo(String type, Object value) {
-            this.type = type;
-            this.value = value;
+        void read(String mode, long bytes, long nanos) {
+            readMode = readMode == null || readMode.equals(mode) ? mode : "mixed";
+            bytesRead += bytes;
+            readNanos += nanos;
+        }
+
+        void wrote(long bytes, long nanos, boolean atomic) {
+            bytesWritten += bytes;
+            writeNanos += nanos;
+            atomicWrite = atomic;
+        }
+
+        Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("readMode", readMode);
+            json.put("bytesRead", bytesRead);
+            json.put("readMs", Math.round(readNanos / 1_000.0) / 1_000.0);
+            json.put("bytesWritten", bytesWritten);
+            json.put("writeMs", Math.round(writeNanos / 1_000.0) / 1_000.0);
+            json.put("atomicWrite", atomicWrite);
+            return json;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(target, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static class ConfigCache {
+        private final long maxBytes;
+        private final LinkedHashMap<String, CachedConfig> byHash = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<Path, String[]> byPath = new HashMap<>();
+        private long retainedBytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        ConfigCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        Object shared(Path path, IoStats io) throws CliException {
+            return lookup(path, io).root(path);
+        }
+
+        Object copy(Path path, IoStats io) throws CliException {
+            return deserializeConfig(lookup(path, io).image, path);
+        }
+
+        void written(Path path, byte[] image, Object root) {
+            Path key;
+            String stamp;
+            try {
+                key = path.toRealPath();
+                stamp = stampOf(key);
+            } catch (IOException ex) {
+                return;
+            }
+            if (stamp == null) {
+                return;
+            }
+            String hash = toHex(sha256().digest(image));
+            synchronized (this) {
+                byPath.put(key, new String[]{stamp, hash});
+                if (!byHash.containsKey(hash)) {
+                    CachedConfig entry = new CachedConfig(image);
+                    entry.root = root;
+                    insert(hash, entry);
+                }
+            }
+        }
+
+        MerkleIndex merkle(Object root) {
+            CachedConfig entry = null;
+            synchronized (this) {
+                for (CachedConfig candidate : byHash.values()) {
+                    if (candidate.root == root) {
+                        entry = candidate;
+                        break;
+                    }
+                }
+            }
+            if (entry == null) {
+                return null;
+            }
+            synchronized (entry) {
+                if (entry.merkle == null) {
+                    entry.merkle = MerkleIndex.build(root);
+                }
+                return entry.merkle;
+            }
+        }
+
+        synchronized Map<String, Object> stats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("entries", byHash.size());
+            stats.put("retainedBytes", retainedBytes);
+            stats.put("maxBytes", maxBytes);
+            stats.put("hits", hits);
+            stats.put("misses", misses);
+            stats.put("evictions", evictions);
+            return stats;
+        }
+
+        private CachedConfig lookup(Path path, IoStats io) throws CliException {
+            Path key;
+            String stamp;
+            try {
+                key = path.toRealPath();
+                stamp = stampOf(key);
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to read config: " + path, null);
+            }
+
+            if (stamp != null) {
+                synchronized (this) {
+                    String[] known = byPath.get(key);
+                    CachedConfig entry = known != null && known[0].equals(stamp) ? byHash.get(known[1]) : null;
+                    if (entry != null) {
+                        hits++;
+                        io.read("cache", 0, 0);
+                        return entry;
+                    }
+                }
+            }
+
+            byte[] image;
+            try {
+                image = readConfigBytes(key, io);
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to read config: " + path, null);
+            }
+            if (stamp == null) {
+                return new CachedConfig(image);
+            }
+
+            String hash = toHex(sha256().digest(image));
+            synchronized (this) {
+                byPath.put(key, new String[]{stamp, hash});
+                CachedConfig entry = byHash.get(hash);
+                if (entry != null) {
+                    hits++;
+                    return entry;
+                }
+                misses++;
+                entry = new CachedConfig(image);
+                insert(hash, entry);
+                return entry;
+            }
+        }
+
+        private void insert(String hash, CachedConfig entry) {
+            long size = (long) entry.image.length * RETAINED_SIZE_FACTOR;
+            if (size > maxBytes) {
+                return;
+            }
+            byHash.put(hash, entry);
+            retainedBytes += size;
+            Iterator<Map.Entry<String, CachedConfig>> eldest = byHash.entrySet().iterator();
+            while (retainedBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, CachedConfig> victim = eldest.next();
+                if (victim.getValue() == entry) {
+                    break;
+                }
+                eldest.remove();
+                retainedBytes -= (long) victim.getValue().image.length * RETAINED_SIZE_FACTOR;
+                evictions++;
+                byPath.values().removeIf(known -> known[1].equals(victim.getKey()));
+            }
+        }
+
+        private static String stampOf(Path path) throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return attrs.size() + ":" + attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS) + ":" + attrs.fileKey();
+        }
+    }
+
+    private static class CachedPlan {
+        final PatchPlan plan;
+        final long size;
+
+        CachedPlan(PatchPlan plan, long size) {
+            this.plan = plan;
+            this.size = size;
+        }
+    }
+
+    private static class CachedConfig {
+        final byte[] image;
+        Object root;
+        MerkleIndex merkle;
+
+        CachedConfig(byte[] image) {
+            this.image = image;
+        }
+
+        synchronized Object root(Path path) throws CliException {
+            if (root == null) {
+                root = deserializeConfig(image, path);
+            }
+            return root;
+        }
+    }
+
+    private static class ScanPrint {
+        final Path path;
+        final String error;
+        final String hash;
+        final SortedMap<String, String> sections;
+
+        ScanPrint(Path path, String error) {
+            this.path = path;
+            this.error = error;
+            this.hash = null;
+            this.sections = null;
+        }
+
+        private ScanPrint(Path path, String hash, SortedMap<String, String> sections) {
+            this.path = path;
+            this.error = null;
+            this.hash = hash;
+            this.sections = sections;
+        }
+
+        static ScanPrint of(Path path, Object root) {
+            MerkleIndex index = MerkleIndex.build(root);
+            SortedMap<String, String> sections = new TreeMap<>();
+            MessageDigest leaves = sha256();
+            if (shouldRecurse(root)) {
+                for (Field field : ClassMeta.of(root.getClass()).instanceFields) {
+                    Object value;
+                    try {
+                        value = field.get(root);
+                    } catch (IllegalAccessException ex) {
+                        continue;
+                    }
+                    if (shouldRecurse(value)) {
+                        String name = "mExcludeManger".equals(field.getName()) ? "mExcludeManager" : field.getName();
+                        sections.put(name, index.hash(value));
+                    } else {
+                        Object encoded = toJsonValue(value, field.getName());
+                        if (value instanceof List) {
+                            List<String> items = new ArrayList<>();
+                            for (Object item : (List<?>) value) {
+                                items.add(shouldRecurse(item) ? index.hash(item) : String.valueOf(item));
+                            }
+                            encoded = items;
+                        }
+                        leaves.update(field.getName().getBytes(StandardCharsets.UTF_8));
+                        leaves.update((byte) 0);
+                        leaves.update(GSON.toJson(encoded).getBytes(StandardCharsets.UTF_8));
+                        leaves.update((byte) 0);
+                    }
+                }
+                sections.put("", toHex(Arrays.copyOf(leaves.digest(), 16)));
+            }
+            String hash = shouldRecurse(root) ? index.hash(root) : toHex(sha256().digest(
+                    GSON.toJson(toJsonValue(root, "")).getBytes(StandardCharsets.UTF_8)));
+            return new ScanPrint(path, hash, sections);
+        }
+
+        List<String> maskedKeys(int tolerance) {
+            List<String> names = new ArrayList<>(sections.keySet());
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                keys.add(maskedKey(names, i, -1));
+                if (tolerance > 1) {
+                    for (int j = i + 1; j < names.size(); j++) {
+                        keys.add(maskedKey(names, i, j));
+                    }
+                }
+            }
+            return keys;
+        }
+
+        private String maskedKey(List<String> names, int first, int second) {
+            StringBuilder key = new StringBuilder().append(first).append(',').append(second);
+            for (int i = 0; i < names.size(); i++) {
+                key.append('|').append(names.get(i)).append('=');
+                if (i != first && i != second) {
+                    key.append(sections.get(names.get(i)));
+                }
+            }
+            return toHex(Arrays.copyOf(sha256().digest(key.toString().getBytes(StandardCharsets.UTF_8)), 16));
+        }
+    }
+
+    private static class ScopeChunk {
+        final String lines;
+        final int[] counts;
+
+        ScopeChunk(String lines, int[] counts) {
+            this.lines = lines;
+            this.counts = counts;
+        }
+    }
+
+    private static class ScopeRules {
+        static final int INCLUDE = 0;
+        static final int DEFAULT = 1;
+        static final int EXCLUDE = 2;
+        static final int NOT_INCLUDED = 3;
+        static final int NOT_ALLOWED_DOMAIN = 4;
+        static final int INVALID_URL = 5;
+        static final int FIRST_OUT_OF_SCOPE = EXCLUDE;
+
+        final List<String> includeSources = new ArrayList<>();
+        final List<Pattern> includes = new ArrayList<>();
+        final List<String> excludeSources = new ArrayList<>();
+        final List<Pattern> excludes = new ArrayList<>();
+        final DomainTrie domains = new DomainTrie();
+        final List<Map<String, Object>> invalid = new ArrayList<>();
+        int domainCount;
+
+        static ScopeRules of(Object root) {
+            ScopeRules rules = new ScopeRules();
+            rules.compile("include", toStringList(readPath(root, "mCrawlConfig.mIncludePatterns")),
+                    rules.includeSources, rules.includes);
+            List<String> excludes = getExcludeList(root);
+            rules.compile("exclude", excludes == null ? Collections.emptyList() : excludes,
+                    rules.excludeSources, rules.excludes);
+            for (String entry : toStringList(readPath(root, "mCrawlConfig.mAllowedDomains"))) {
+                String domain = normalizeDomain(entry);
+                if (domain != null) {
+                    rules.domains.add(domain, entry.trim());
+                    rules.domainCount++;
+                }
+            }
+            return rules;
+        }
+
+        private void compile(String kind, List<String> sources, List<String> keptSources, List<Pattern> patterns) {
+            for (String source : sources) {
+                if (source == null || source.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    patterns.add(Pattern.compile(source));
+                    keptSources.add(source);
+                } catch (PatternSyntaxException ex) {
+                    Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("rule", kind);
+                    entry.put("pattern", source);
+                    entry.put("error", ex.getDescription());
+                    invalid.add(entry);
+                }
+            }
+        }
+
+        ScopeChunk evaluate(List<String> urls) throws IOException {
+            Matcher[] includeMatchers = matchers(includes);
+            Matcher[] excludeMatchers = matchers(excludes);
+            int[] counts = new int[SCOPE_RULES.length];
+            StringWriter buffer = new StringWriter(urls.size() * 96);
+            for (String url : urls) {
+                String pattern = null;
+                String domain = null;
+                int rule = DEFAULT;
+                if (domainCount > 0) {
+                    String host = hostOf(url);
+                    domain = host == null ? null : domains.match(host);
+                    if (host == null) {
+                        rule = INVALID_URL;
+                    } else if (domain == null) {
+                        rule = NOT_ALLOWED_DOMAIN;
+                    }
+                }
+                if (rule == DEFAULT) {
+                    int hit = firstMatch(excludeMatchers, url);
+                    if (hit >= 0) {
+                        rule = EXCLUDE;
+                        pattern = excludeSources.get(hit);
+                    } else if (includeMatchers.length > 0) {
+                        hit = firstMatch(includeMatchers, url);
+                        rule = hit >= 0 ? INCLUDE : NOT_INCLUDED;
+                        pattern = hit >= 0 ? includeSources.get(hit) : null;
+                    }
+                }
+                counts[rule]++;
+                JsonWriter out = new JsonWriter(buffer);
+                out.setHtmlSafe(true);
+                out.beginObject();
+                out.name("url").value(url);
+                out.name("inScope").value(rule < FIRST_OUT_OF_SCOPE);
+                out.name("rule").value(SCOPE_RULES[rule]);
+                if (pattern != null) {
+                    out.name("pattern").value(pattern);
+                }
+                if (domain != null) {
+                    out.name("domain").value(domain);
+                }
+                out.endObject();
+                out.flush();
+                buffer.write(System.lineSeparator());
+            }
+            return new ScopeChunk(buffer.toString(), counts);
+        }
+
+        private static Matcher[] matchers(List<Pattern> patterns) {
+            Matcher[] matchers = new Matcher[patterns.size()];
+            for (int i = 0; i < matchers.length; i++) {
+                matchers[i] = patterns.get(i).matcher("");
+            }
+            return matchers;
+        }
+
+        private static int firstMatch(Matcher[] matchers, String url) {
+            for (int i = 0; i < matchers.length; i++) {
+                if (matchers[i].reset(url).matches()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        static String hostOf(String url) {
+            int scheme = url.indexOf("://");
+            if (scheme <= 0) {
+                return null;
+            }
+            int start = scheme + 3;
+            int end = url.length();
+            for (int i = start; i < end; i++) {
+                char c = url.charAt(i);
+                if (c == '/' || c == '?' || c == '#') {
+                    end = i;
+                    break;
+                }
+            }
+            int at = url.lastIndexOf('@', end - 1);
+            if (at >= start) {
+                start = at + 1;
+            }
+            if (start < end && url.charAt(start) == '[') {
+                int close = url.indexOf(']', start);
+                return close < 0 || close >= end ? null : url.substring(start, close + 1).toLowerCase(Locale.ROOT);
+            }
+            int colon = url.indexOf(':', start);
+            if (colon >= 0 && colon < end) {
+                end = colon;
+            }
+            while (end > start && url.charAt(end - 1) == '.') {
+                end--;
+            }
+            return start >= end ? null : url.substring(start, end).toLowerCase(Locale.ROOT);
+        }
+
+        static String normalizeDomain(String entry) {
+            if (entry == null || entry.trim().isEmpty()) {
+                return null;
+            }
+            String value = entry.trim();
+            if (!value.contains("://")) {
+                if (value.indexOf(':') != value.lastIndexOf(':') && !value.startsWith("[")) {
+                    value = "[" + value + "]";
+                }
+                value = "http://" + value;
+            }
+            String host = hostOf(value);
+            if (host == null) {
+                return null;
+            }
+            while (host.startsWith("*.") || host.startsWith(".")) {
+                host = host.substring(host.charAt(0) == '*' ? 2 : 1);
+            }
+            return host.isEmpty() ? null : host;
+        }
+    }
+
+    private static class DomainTrie {
+        final Map<String, DomainTrie> children = new HashMap<>();
+        String entry;
+
+        void add(String domain, String source) {
+            DomainTrie node = this;
+            int end = domain.length();
+            while (end > 0) {
+                int dot = domain.lastIndexOf('.', end - 1);
+                node = node.children.computeIfAbsent(domain.substring(dot + 1, end), key -> new DomainTrie());
+                end = dot;
+            }
+            if (node.entry == null) {
+                node.entry = source;
+            }
+        }
+
+        String match(String host) {
+            DomainTrie node = this;
+            String matched = null;
+            int end = host.length();
+            while (end > 0) {
+                int dot = host.lastIndexOf('.', end - 1);
+                node = node.children.get(host.substring(dot + 1, end));
+                if (node == null) {
+                    break;
+                }
+                if (node.entry != null) {
+                    matched = node.entry;
+                }
+                end = dot;
+            }
+            return matched;
+        }
+    }
+
+    private static class PatternShape {
+        static final int EXACT = 0;
+        static final int PREFIX = 1;
+        static final int SUFFIX = 2;
+        static final int CONTAINS = 3;
+
+        final int kind;
+        final List<String> atoms;
+        final String literal;
+        final String witness;
+
+        private PatternShape(int kind, List<String> atoms, String literal, String witness) {
+            this.kind = kind;
+            this.atoms = atoms;
+            this.literal = literal;
+            this.witness = witness;
+        }
+
+        static PatternShape of(String regex) {
+            if (regex.contains("\\Q")) {
+                return null;
+            }
+            int start = regex.startsWith("^") ? 1 : 0;
+            int end = regex.length();
+            if (end > start && regex.charAt(end - 1) == '$' && !escaped(regex, end - 1)) {
+                end--;
+            }
+            boolean leading = regex.startsWith(".*", start);
+            if (leading) {
+                start += 2;
+            }
+            boolean trailing = end - 2 >= start && regex.startsWith(".*", end - 2) && !escaped(regex, end - 2);
+            if (trailing) {
+                end -= 2;
+            }
+            List<String> atoms = new ArrayList<>(Math.max(end - start, 0));
+            StringBuilder witness = new StringBuilder(Math.max(end - start, 0));
+            boolean wildcard = false;
+            for (int i = start; i < end; i++) {
+                char c = regex.charAt(i);
+                if (c == '\\') {
+                    if (i + 1 >= end || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                        return null;
+                    }
+                    c = regex.charAt(++i);
+                } else if (c == '.') {
+                    if (i + 1 < end && "*+?{".indexOf(regex.charAt(i + 1)) >= 0) {
+                        return null;
+                    }
+                    atoms.add(".");
+                    witness.append('.');
+                    wildcard = true;
+                    continue;
+                } else if ("[](){}*+?^$|".indexOf(c) >= 0) {
+                    return null;
+                }
+                if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029'
+                        || (i + 1 < end && "*+?{".indexOf(regex.charAt(i + 1)) >= 0)) {
+                    return null;
+                }
+                atoms.add(quote(c));
+                witness.append(c);
+            }
+            int kind = leading ? (trailing ? CONTAINS : SUFFIX) : (trailing ? PREFIX : EXACT);
+            if (atoms.isEmpty() && (leading || trailing)) {
+                kind = CONTAINS;
+            }
+            return new PatternShape(kind, atoms, wildcard ? null : witness.toString(), witness.toString());
+        }
+
+        boolean matchesLiteral(String text) {
+            int n = atoms.size();
+            if (text.length() < n || (kind == EXACT && text.length() != n)) {
+                return false;
+            }
+            if (kind == EXACT || kind == PREFIX) {
+                return matchesAt(text, 0);
+            }
+            if (kind == SUFFIX) {
+                return matchesAt(text, text.length() - n);
+            }
+            for (int start = 0; start + n <= text.length(); start++) {
+                if (matchesAt(text, start)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesAt(String text, int start) {
+            for (int i = 0; i < atoms.size(); i++) {
+                String atom = atoms.get(i);
+                if (!".".equals(atom) && atom.charAt(atom.length() - 1) != text.charAt(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static String quote(char c) {
+            return "\\[](){}.*+?^$|".indexOf(c) >= 0 ? "\\" + c : String.valueOf(c);
+        }
+
+        private static boolean escaped(String regex, int index) {
+            int slashes = 0;
+            while (index - slashes - 1 >= 0 && regex.charAt(index - slashes - 1) == '\\') {
+                slashes++;
+            }
+            return slashes % 2 == 1;
+        }
+    }
+
+    private static class PatternOptimizer {
+        private static final Pattern BACKREFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+        static Map<String, Object> optimize(String path, List<String> patterns, List<String> sample, boolean combine,
+                                            boolean dropUnmatched, int maxAlternation, List<String> warnings,
+                                            JsonObject patches) {
+            List<String> sources = new ArrayList<>();
+            List<Pattern> compiled = new ArrayList<>();
+            List<PatternShape> shapes = new ArrayList<>();
+            List<String> duplicates = new ArrayList<>();
+            List<Map<String, Object>> invalid = new ArrayList<>();
+            List<Pattern> original = new ArrayList<>();
+            Map<String, Pattern> seen = new HashMap<>();
+            for (String pattern : patterns) {
+                if (pattern == null) {
+                    continue;
+                }
+                if (seen.containsKey(pattern)) {
+                    duplicates.add(pattern);
+                    if (seen.get(pattern) != null) {
+                        original.add(seen.get(pattern));
+                    }
+                    continue;
+                }
+                seen.put(pattern, null);
+                try {
+                    Pattern regex = Pattern.compile(pattern);
+                    seen.put(pattern, regex);
+                    original.add(regex);
+                    compiled.add(regex);
+                } catch (PatternSyntaxException ex) {
+                    Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("pattern", pattern);
+                    entry.put("error", ex.getDescription());
+                    invalid.add(entry);
+                    continue;
+                }
+                sources.add(pattern);
+                shapes.add(PatternShape.of(pattern));
+            }
+
+            boolean[] hits = new boolean[sample.size()];
+            Map<String, Object> costBefore = sample.isEmpty() ? null : matchCost(original, sample, hits);
+
+            boolean[] removed = new boolean[sources.size()];
+            List<Map<String, Object>> subsumed = new ArrayList<>();
+            markSubsumed(sources, compiled, shapes, removed, subsumed);
+
+            List<String> unmatched = new ArrayList<>();
+            if (!sample.isEmpty()) {
+                for (int i = 0; i < sources.size(); i++) {
+                    if (removed[i]) {
+                        continue;
+                    }
+                    Matcher matcher = compiled.get(i).matcher("");
+                    boolean hit = false;
+                    for (int u = 0; u < hits.length && !hit; u++) {
+                        hit = hits[u] && matcher.reset(sample.get(u)).matches();
+                    }
+                    if (!hit) {
+                        unmatched.add(sources.get(i));
+                        if (dropUnmatched) {
+                            removed[i] = true;
+                        }
+                    }
+                }
+            }
+
+            List<String> kept = new ArrayList<>();
+            List<Pattern> keptCompiled = new ArrayList<>();
+            List<PatternShape> keptShapes = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                if (!removed[i]) {
+                    kept.add(sources.get(i));
+                    keptCompiled.add(compiled.get(i));
+                    keptShapes.add(shapes.get(i));
+                }
+            }
+
+            List<String> optimized = kept;
+            List<Pattern> optimizedCompiled = keptCompiled;
+            boolean combined = false;
+            if (combine && kept.size() > 1) {
+                List<String> merged = combine(kept, keptShapes, maxAlternation);
+                List<Pattern> mergedCompiled = new ArrayList<>();
+                int mismatches = 0;
+                try {
+                    for (String pattern : merged) {
+                        mergedCompiled.add(Pattern.compile(pattern));
+                    }
+                    for (int u = 0; u < hits.length; u++) {
+                        if (hits[u] != firstMatch(mergedCompiled, sample.get(u), null) >= 0) {
+                            mismatches++;
+                        }
+                    }
+                    for (PatternShape shape : keptShapes) {
+                        if (shape != null && firstMatch(mergedCompiled, shape.witness, null) < 0) {
+                            mismatches++;
+                        }
+                    }
+                } catch (PatternSyntaxException ex) {
+                    mismatches = -1;
+                }
+                if (mismatches == 0) {
+                    optimized = merged;
+                    optimizedCompiled = mergedCompiled;
+                    combined = true;
+                } else {
+                    warnings.add(path + ": combined patterns did not reproduce the originals; kept them uncombined");
+                }
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("path", path);
+            result.put("before", patterns.size());
+            result.put("after", optimized.size());
+            result.put("combined", combined);
+            result.put("patterns", optimized);
+            result.put("duplicates", duplicates);
+            result.put("subsumed", subsumed);
+            result.put("invalid", invalid);
+            if (!sample.isEmpty()) {
+                result.put("unmatched", unmatched);
+                Map<String, Object> cost = new LinkedHashMap<>();
+                cost.put("before", costBefore);
+                cost.put("after", matchCost(optimizedCompiled, sample, null));
+                result.put("cost", cost);
+            }
+            if (!optimized.equals(patterns)) {
+                JsonObject op = new JsonObject();
+                op.addProperty("op", "set");
+                op.add("values", GSON.toJsonTree(optimized));
+                patches.add(path, op);
+            }
+            return result;
+        }
+
+        private static void markSubsumed(List<String> sources, List<Pattern> compiled, List<PatternShape> shapes,
+                                         boolean[] removed, List<Map<String, Object>> subsumed) {
+            Map<String, List<Integer>> exact = new HashMap<>();
+            Map<String, List<Integer>> prefixes = new HashMap<>();
+            Map<String, List<Integer>> suffixes = new HashMap<>();
+            List<Integer> contains = new ArrayList<>();
+            List<Integer> others = new ArrayList<>();
+            for (int i = 0; i < shapes.size(); i++) {
+                PatternShape shape = shapes.get(i);
+                if (shape == null || shape.literal == null) {
+                    others.add(i);
+                } else if (shape.kind == PatternShape.EXACT) {
+                    exact.computeIfAbsent(shape.literal, key -> new ArrayList<>()).add(i);
+                } else if (shape.kind == PatternShape.PREFIX) {
+                    prefixes.computeIfAbsent(shape.literal, key -> new ArrayList<>()).add(i);
+                } else if (shape.kind == PatternShape.SUFFIX) {
+                    suffixes.computeIfAbsent(shape.literal, key -> new ArrayList<>()).add(i);
+                } else {
+                    contains.add(i);
+                }
+            }
+
+            long checks = 0;
+            for (int i = 0; i < shapes.size(); i++) {
+                PatternShape shape = shapes.get(i);
+                if (shape == null || shape.literal == null) {
+                    continue;
+                }
+                String literal = shape.literal;
+                int by = -1;
+                if (shape.kind == PatternShape.EXACT) {
+                    by = alive(exact.get(literal), i, removed);
+                }
+                if (by < 0 && (shape.kind == PatternShape.EXACT || shape.kind == PatternShape.PREFIX)) {
+                    for (int k = 0; k <= literal.length() && by < 0; k++) {
+                        by = alive(prefixes.get(literal.substring(0, k)), i, removed);
+                    }
+                }
+                if (by < 0 && (shape.kind == PatternShape.EXACT || shape.kind == PatternShape.SUFFIX)) {
+                    for (int k = 0; k <= literal.length() && by < 0; k++) {
+                        by = alive(suffixes.get(literal.substring(k)), i, removed);
+                    }
+                }
+                for (int j = 0; j < contains.size() && by < 0; j++) {
+                    int other = contains.get(j);
+                    if (other != i && !removed[other] && literal.contains(shapes.get(other).literal)) {
+                        by = other;
+                    }
+                }
+                if (shape.kind == PatternShape.EXACT && checks < MAX_SUBSUMPTION_CHECKS) {
+                    checks += others.size();
+                    for (int j = 0; j < others.size() && by < 0; j++) {
+                        int other = others.get(j);
+                        if (removed[other]) {
+                            continue;
+                        }
+                        PatternShape otherShape = shapes.get(other);
+                        if (otherShape != null ? otherShape.matchesLiteral(literal)
+                                : compiled.get(other).matcher(literal).matches()) {
+                            by = other;
+                        }
+                    }
+                }
+                if (by >= 0) {
+                    removed[i] = true;
+                    Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("pattern", sources.get(i));
+                    entry.put("by", sources.get(by));
+                    subsumed.add(entry);
+                }
+            }
+        }
+
+        private static int alive(List<Integer> candidates, int self, boolean[] removed) {
+            if (candidates != null) {
+                for (int candidate : candidates) {
+                    if (candidate != self && !removed[candidate]) {
+                        return candidate;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private static List<String> combine(List<String> patterns, List<PatternShape> shapes, int maxAlternation) {
+            List<List<List<String>>> literals = new ArrayList<>();
+            for (int kind = 0; kind <= PatternShape.CONTAINS; kind++) {
+                literals.add(new ArrayList<>());
+            }
+            List<String> others = new ArrayList<>();
+            List<String> out = new ArrayList<>();
+            for (int i = 0; i < patterns.size(); i++) {
+                PatternShape shape = shapes.get(i);
+                if (shape != null) {
+                    literals.get(shape.kind).add(shape.atoms);
+                } else if (BACKREFERENCE.matcher(patterns.get(i)).find()) {
+                    out.add(patterns.get(i));
+                } else {
+                    others.add(patterns.get(i));
+                }
+            }
+            for (int kind = 0; kind <= PatternShape.CONTAINS; kind++) {
+                addTrieRegexes(literals.get(kind), kind, maxAlternation, out);
+            }
+            for (int from = 0; from < others.size(); from += maxAlternation) {
+                List<String> chunk = others.subList(from, Math.min(others.size(), from + maxAlternation));
+                if (chunk.size() == 1) {
+                    out.add(chunk.get(0));
+                    continue;
+                }
+                StringBuilder alternation = new StringBuilder();
+                for (String pattern : chunk) {
+                    alternation.append(alternation.length() == 0 ? "" : "|").append("(?:").append(pattern).append(')');
+                }
+                out.add(alternation.toString());
+            }
+            return out;
+        }
+
+        static List<String> compact(List<String> patterns, int maxAlternation) {
+            List<String> order = new ArrayList<>();
+            List<String> sources = new ArrayList<>();
+            List<Pattern> compiled = new ArrayList<>();
+            List<PatternShape> shapes = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (String pattern : patterns) {
+                if (pattern == null || !seen.add(pattern)) {
+                    continue;
+                }
+                order.add(pattern);
+                PatternShape shape = PatternShape.of(pattern);
+                Pattern regex = null;
+                if (shape == null) {
+                    try {
+                        regex = Pattern.compile(pattern);
+                    } catch (PatternSyntaxException ex) {
+                        continue;
+                    }
+                }
+                sources.add(pattern);
+                compiled.add(regex);
+                shapes.add(shape);
+            }
+
+            boolean[] removed = new boolean[sources.size()];
+            markSubsumed(sources, compiled, shapes, removed, new ArrayList<>());
+            Set<String> dropped = new HashSet<>();
+            List<List<String>> exact = new ArrayList<>();
+            List<List<String>> prefixes = new ArrayList<>();
+            Set<String> collapsed = new HashSet<>();
+            for (int i = 0; i < sources.size(); i++) {
+                PatternShape shape = shapes.get(i);
+                if (removed[i]) {
+                    dropped.add(sources.get(i));
+                } else if (shape != null && (shape.kind == PatternShape.EXACT || shape.kind == PatternShape.PREFIX)) {
+                    (shape.kind == PatternShape.EXACT ? exact : prefixes).add(shape.atoms);
+                    collapsed.add(sources.get(i));
+                }
+            }
+
+            List<String> deduped = new ArrayList<>();
+            List<String> out = new ArrayList<>();
+            for (String pattern : order) {
+                if (!dropped.contains(pattern)) {
+                    deduped.add(pattern);
+                    if (!collapsed.contains(pattern)) {
+                        out.add(pattern);
+                    }
+                }
+            }
+            if (collapsed.size() < 2) {
+                return deduped;
+            }
+            if (!addTrieRegexes(exact, PatternShape.EXACT, maxAlternation, out)
+                    || !addTrieRegexes(prefixes, PatternShape.PREFIX, maxAlternation, out)) {
+                return deduped;
+            }
+            return out;
+        }
+
+        private static boolean addTrieRegexes(List<List<String>> group, int kind, int maxAlternation,
+                                              List<String> out) {
+            boolean reverse = kind == PatternShape.SUFFIX;
+            List<Map.Entry<String, List<String>>> keyed = new ArrayList<>(group.size());
+            for (List<String> atoms : group) {
+                List<String> ordered = atoms;
+                if (reverse) {
+                    ordered = new ArrayList<>(atoms);
+                    Collections.reverse(ordered);
+                }
+                keyed.add(new AbstractMap.SimpleEntry<>(String.join("\u0000", ordered), ordered));
+            }
+            keyed.sort(Map.Entry.comparingByKey());
+            boolean verified = true;
+            for (int from = 0; from < keyed.size(); from += maxAlternation) {
+                List<Map.Entry<String, List<String>>> chunk = keyed.subList(from, Math.min(keyed.size(), from + maxAlternation));
+                AtomTrie trie = new AtomTrie();
+                for (Map.Entry<String, List<String>> entry : chunk) {
+                    trie.add(entry.getValue());
+                }
+                StringBuilder body = new StringBuilder();
+                if (kind == PatternShape.SUFFIX || kind == PatternShape.CONTAINS) {
+                    body.append(".*");
+                }
+                trie.appendRegex(body, reverse);
+                if (kind == PatternShape.PREFIX || kind == PatternShape.CONTAINS) {
+                    body.append(".*");
+                }
+                String regex = body.length() == 4 && kind == PatternShape.CONTAINS ? ".*" : body.toString();
+                out.add(regex);
+                try {
+                    Matcher matcher = Pattern.compile(regex).matcher("");
+                    for (Map.Entry<String, List<String>> entry : chunk) {
+                        if (!matcher.reset(witness(entry.getValue(), reverse)).matches()) {
+                            verified = false;
+                        }
+                    }
+                } catch (PatternSyntaxException ex) {
+                    verified = false;
+                }
+            }
+            return verified;
+        }
+
+        private static String witness(List<String> atoms, boolean reverse) {
+            StringBuilder text = new StringBuilder(atoms.size());
+            for (String atom : atoms) {
+                text.append(atom.charAt(atom.length() - 1));
+            }
+            return reverse ? text.reverse().toString() : text.toString();
+        }
+
+        private static int firstMatch(List<Pattern> patterns, String url, long[] evaluations) {
+            for (int i = 0; i < patterns.size(); i++) {
+                if (evaluations != null) {
+                    evaluations[0]++;
+                }
+                if (patterns.get(i).matcher(url).matches()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static Map<String, Object> matchCost(List<Pattern> patterns, List<String> sample, boolean[] hits) {
+            long[] evaluations = new long[1];
+            int matched = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < sample.size(); i++) {
+                if (firstMatch(patterns, sample.get(i), evaluations) >= 0) {
+                    matched++;
+                    if (hits != null) {
+                        hits[i] = true;
+                    }
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            Map<String, Object> cost = new LinkedHashMap<>();
+            cost.put("patterns", patterns.size());
+            cost.put("evaluations", evaluations[0]);
+            cost.put("matched", matched);
+            cost.put("nanos", nanos);
+            return cost;
+        }
+    }
+
+    private static class AtomTrie {
+        final TreeMap<String, AtomTrie> children = new TreeMap<>();
+        boolean terminal;
+
+        void add(List<String> atoms) {
+            AtomTrie node = this;
+            for (String atom : atoms) {
+                node = node.children.computeIfAbsent(atom, key -> new AtomTrie());
+            }
+            node.terminal = true;
+        }
+
+        void appendRegex(StringBuilder out, boolean reverse) {
+            if (children.isEmpty()) {
+                return;
+            }
+            boolean group = children.size() > 1 || terminal;
+            if (group) {
+                out.append("(?:");
+            }
+            boolean first = true;
+            for (Map.Entry<String, AtomTrie> entry : children.entrySet()) {
+                if (!first) {
+                    out.append('|');
+                }
+                first = false;
+                List<String> run = new ArrayList<>();
+                run.add(entry.getKey());
+                AtomTrie node = entry.getValue();
+                while (!node.terminal && node.children.size() == 1) {
+                    Map.Entry<String, AtomTrie> only = node.children.firstEntry();
+                    run.add(only.getKey());
+                    node = only.getValue();
+                }
+                if (reverse) {
+                    node.appendRegex(out, true);
+                    for (int i = run.size() - 1; i >= 0; i--) {
+                        out.append(run.get(i));
+                    }
+                } else {
+                    for (String atom : run) {
+                        out.append(atom);
+                    }
+                    node.appendRegex(out, false);
+                }
+            }
+            if (group) {
+                out.append(')');
+            }
+            if (terminal) {
+                out.append('?');
+            }
+        }
+    }
+
+    private static class PatchPlan {
+        static final int MAX_URLS = 0;
+        static final int MAX_DEPTH = 1;
+        static final int RENDERING_MODE = 2;
+        static final int EXCLUDES = 3;
+        static final int LIST = 4;
+        static final int FIELD = 5;
+        private static final long CACHE_BYTES = 16L * 1024 * 1024;
+        private static final int MAX_CACHED_CHARS = 64 * 1024;
+        private static final LinkedHashMap<String, CachedPlan> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+        private static long cachedBytes;
+
+        final List<RuleOp> extractions;
+        final List<RuleOp> customSearches;
+        final List<RuleOp> customJavaScript;
+        final List<PatchStep> steps;
+
+        private PatchPlan(
+                List<RuleOp> extractions,
+                List<RuleOp> customSearches,
+                List<RuleOp> customJavaScript,
+                List<PatchStep> steps
+        ) {
+            this.extractions = extractions == null ? null : Collections.unmodifiableList(extractions);
+            this.customSearches = customSearches == null ? null : Collections.unmodifiableList(customSearches);
+            this.customJavaScript = customJavaScript == null ? null : Collections.unmodifiableList(customJavaScript);
+            this.steps = Collections.unmodifiableList(steps);
+        }
+
+        static PatchPlan of(String patchJson) throws CliException {
+            // Large documents are usually one-off daemon payloads; hashing and
+            // retaining them would cost more than recompiling.
+            String key = patchJson.length() > MAX_CACHED_CHARS
+                    ? null
+                    : toHex(sha256().digest(patchJson.getBytes(StandardCharsets.UTF_8)));
+            if (key != null) {
+                synchronized (CACHE) {
+                    CachedPlan cached = CACHE.get(key);
+                    if (cached != null) {
+                        return cached.plan;
+                    }
+                }
+            }
+            JsonObject patches;
+            try {
+                patches = JsonParser.parseString(patchJson).getAsJsonObject();
+            } catch (Exception ex) {
+                throw new CliException(ERROR_VALIDATION, 1, "Invalid JSON for --patches", null);
+            }
+            PatchPlan plan = compile(patches);
+            if (key != null) {
+                cache(key, new CachedPlan(plan, (long) patchJson.length() * 2 * RETAINED_SIZE_FACTOR));
+            }
+            return plan;
+        }
+
+        private static void cache(String key, CachedPlan entry) {
+            synchronized (CACHE) {
+                CachedPlan previous = CACHE.put(key, entry);
+                if (previous != null) {
+                    cachedBytes -= previous.size;
+                }
+                cachedBytes += entry.size;
+                Iterator<CachedPlan> eldest = CACHE.values().iterator();
+                while (cachedBytes > CACHE_BYTES && eldest.hasNext()) {
+                    CachedPlan victim = eldest.next();
+                    if (victim == entry) {
+                        break;
+                    }
+                    eldest.remove();
+                    cachedBytes -= victim.size;
+                }
+            }
+        }
+
+        static PatchPlan compile(JsonObject patches) throws CliException {
+            List<RuleOp> extractions = arrayPatch(patches, "extractions");
+            List<RuleOp> customSearches = arrayPatch(patches, "custom_searches");
+            List<RuleOp> customJavaScript = arrayPatch(patches, "custom_javascript");
+            List<PatchStep> steps = new ArrayList<>();
+            for (Map.Entry<String, JsonElement> entry : patches.entrySet()) {
+                String path = entry.getKey();
+                if (isRulePatch(path)) {
+                    continue;
+                }
+                requireEditable(path);
+                JsonElement value = entry.getValue();
+                if (isListPatch(path)) {
+                    steps.add(listStep(path, ListPatch.compile(value, isPatternList(path))));
+                } else {
+                    steps.add(fieldStep(path, value));
+                }
+            }
+            return new PatchPlan(extractions, customSearches, customJavaScript, steps);
+        }
+
+        static PatchPlan read(JsonReader in) throws IOException, CliException {
+            Map<String, List<RuleOp>> rules = new HashMap<>();
+            Map<String, PatchStep> steps = new LinkedHashMap<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                String path = in.nextName();
+                if (isRulePatch(path)) {
+                    if (in.peek() != JsonToken.BEGIN_ARRAY) {
+                        throw new CliException(ERROR_VALIDATION, 1, path + " must be an array", null);
+                    }
+                    JsonArray array = new JsonArray();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        array.add(JsonParser.parseReader(in));
+                    }
+                    in.endArray();
+                    rules.put(path, ruleOps(path, array));
+                    continue;
+                }
+                requireEditable(path);
+                if (isListPatch(path)) {
+                    steps.put(path, listStep(path, ListPatch.read(in, isPatternList(path))));
+                } else {
+                    steps.put(path, fieldStep(path, JsonParser.parseReader(in)));
+                }
+            }
+            in.endObject();
+            if (in.peek() != JsonToken.END_DOCUMENT) {
+                throw new CliException(ERROR_VALIDATION, 1, "Invalid JSON for --patches", null);
+            }
+            return new PatchPlan(
+                    rules.get("extractions"),
+                    rules.get("custom_searches"),
+                    rules.get("custom_javascript"),
+                    new ArrayList<>(steps.values()));
+        }
+
+        private static List<RuleOp> ruleOps(String key, JsonArray ops) throws CliException {
+            if ("extractions".equals(key)) {
+                return compileExtractionOps(ops);
+            }
+            if ("custom_searches".equals(key)) {
+                return compileCustomSearchOps(ops);
+            }
+            return compileCustomJavaScriptOps(ops);
+        }
+
+        private static boolean isRulePatch(String key) {
+            return "extractions".equals(key) || "custom_searches".equals(key) || "custom_javascript".equals(key);
+        }
+
+        private static boolean isListPatch(String path) {
+            return isVirtualExcludeField(path) || LIST_ALLOWLIST.contains(path);
+        }
+
+        private static boolean isPatternList(String path) {
+            return !"mCrawlConfig.mAllowedDomains".equals(path);
+        }
+
+        private static void requireEditable(String path) throws CliException {
+            if (!isEditable(path)) {
+                Map<String, Object> details = new LinkedHashMap<>();
+                details.put("allowedFields", allowedFieldsList());
+                throw new CliException(ERROR_VALIDATION, 1, "Field not allowed: " + path, details);
+            }
+        }
+
+        private static PatchStep listStep(String path, ListPatch list) {
+            return new PatchStep(path, isVirtualExcludeField(path) ? EXCLUDES : LIST, null, list);
+        }
+
+        private static PatchStep fieldStep(String path, JsonElement value) throws CliException {
+            Map<String, Object> field = ConfigSchema.current().field(path);
+            if (field != null) {
+                typeCheck(path, value, field);
+            }
+            int kind = FIELD;
+            if ("mCrawlConfig.mMaxUrls".equals(path)) {
+                kind = MAX_URLS;
+            } else if ("mCrawlConfig.mMaxDepth".equals(path)) {
+                kind = MAX_DEPTH;
+            } else if ("mCrawlConfig.mRenderingMode".equals(path)) {
+                kind = RENDERING_MODE;
+            }
+            return new PatchStep(path, kind, value, null);
+        }
+
+        int size() {
+            int size = steps.size();
+            for (List<RuleOp> ops : Arrays.asList(extractions, customSearches, customJavaScript)) {
+                if (ops != null) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        private static List<RuleOp> arrayPatch(JsonObject patches, String key) throws CliException {
+            if (!patches.has(key)) {
+                return null;
+            }
+            JsonElement element = patches.get(key);
+            if (!element.isJsonArray()) {
+                throw new CliException(ERROR_VALIDATION, 1, key + " must be an array", null);
+            }
+            return ruleOps(key, element.getAsJsonArray());
+        }
+
+        private static void typeCheck(String path, JsonElement value, Map<String, Object> field) throws CliException {
+            if (value == null || value.isJsonNull()) {
+                return;
+            }
+            Object type = field.get("type");
+            if ("enum".equals(type)) {
+                Object options = field.get("enumOptions");
+                if (!value.isJsonPrimitive()) {
+                    throw new CliException(ERROR_VALIDATION, 1, "Invalid enum for: " + path, null);
+                }
+                String raw = value.getAsString();
+                if (options instanceof List && !((List<?>) options).contains(raw.toUpperCase(Locale.ROOT))) {
+                    throw new CliException(ERROR_VALIDATION, 1, "Invalid enum value for " + path + ": " + raw, null);
+                }
+                return;
+            }
+            Class<?> boxed = boxedType(type);
+            if (boxed == null) {
+                return;
+            }
+            try {
+                coerceValue(boxed, value, path);
+            } catch (RuntimeException ex) {
+                throw new CliException(ERROR_VALIDATION, 1, "Invalid " + type + " for: " + path, null);
+            }
+        }
+
+        private static Class<?> boxedType(Object typeName) {
+            if ("string".equals(typeName)) {
+                return String.class;
+            }
+            if ("int".equals(typeName)) {
+                return Integer.class;
+            }
+            if ("long".equals(typeName)) {
+                return Long.class;
+            }
+            if ("double".equals(typeName)) {
+                return Double.class;
+            }
+            if ("float".equals(typeName)) {
+                return Float.class;
+            }
+            if ("boolean".equals(typeName)) {
+                return Boolean.class;
+            }
+            return null;
+        }
+
+        void apply(Object root, List<Map<String, Object>> changes, List<String> warnings) throws Exception {
+            if (extractions != null) {
+                List<Map<String, Object>> before = extractRules(root);
+                applyExtractionPatches(root, extractions, warnings);
+                addChange(changes, VIRTUAL_EXTRACTIONS, before, extractRules(root));
+            }
+            if (customSearches != null) {
+                List<Map<String, Object>> before = extractCustomSearches(root);
+                applyCustomSearchPatches(root, customSearches, warnings);
+                addChange(changes, VIRTUAL_CUSTOM_SEARCHES, before, extractCustomSearches(root));
+            }
+            if (customJavaScript != null) {
+                List<Map<String, Object>> before = extractCustomJavaScript(root);
+                applyCustomJavaScriptPatches(root, customJavaScript, warnings);
+                addChange(changes, VIRTUAL_CUSTOM_JAVASCRIPT, before, extractCustomJavaScript(root));
+            }
+
+            List<String> excludeList = null;
+            for (PatchStep step : steps) {
+                String path = step.path;
+                if (step.kind == MAX_URLS) {
+                    Integer before = getMaxUrls(root);
+                    if (before != null) {
+                        int after = (Integer) coerceValue(Integer.class, step.value, path);
+                        setMaxUrls(root, after);
+                        addChange(changes, path, before, after);
+                        continue;
+                    }
+                }
+
+                if (step.kind == MAX_DEPTH) {
+                    Integer before = getMaxDepth(root);
+                    if (before != null) {
+                        int after = (Integer) coerceValue(Integer.class, step.value, path);
+                        setMaxDepth(root, after);
+                        addChange(changes, path, before, after);
+                        continue;
+                    }
+                }
+
+                if (step.kind == RENDERING_MODE) {
+                    Object crawlConfig = getNestedField(root, "mCrawlConfig");
+                    if (crawlConfig != null
+                            && !fieldExists(crawlConfig, "mRenderingMode")
+                            && fieldExists(crawlConfig, "mCrawlerMode")) {
+                        String before = getRenderingMode(root);
+                        setRenderingMode(root, (String) coerceValue(String.class, step.value, path));
+                        addChange(changes, path, before, getRenderingMode(root));
+                        continue;
+                    }
+                }
+
+                if (step.kind == EXCLUDES) {
+                    if (excludeList == null) {
+                        if (getExcludeManager(root) == null) {
+                            throw new CliException(ERROR_VALIDATION, 1, "Exclude manager not found", null);
+                        }
+                        excludeList = getExcludeList(root);
+                    }
+                    List<String> before = excludeList;
+                    excludeList = step.list.apply(before);
+                    addChange(changes, path, before, excludeList);
+                    continue;
+                }
+
+                FieldPath compiled = compilePath(root, path);
+                Object target = compiled.parent(root);
+                FieldAccessor targetField = compiled.leaf(target);
+                Object before = targetField.get(target);
+
+                if (step.kind == LIST) {
+                    List<String> beforeList = toStringList(before);
+                    List<String> afterList = step.list.apply(beforeList);
+                    targetField.set(target, afterList);
+                    Map<String, Object> change = new LinkedHashMap<>();
+                    change.put("path", path);
+                    change.put("before", beforeList);
+                    change.put("after", afterList);
+                    changes.add(change);
+                } else {
+                    Object coerced = coerceValue(targetField.type(), step.value, path);
+                    targetField.set(target, coerced);
+                    Object after = targetField.get(target);
+                    if (!Objects.equals(before, after)) {
+                        Map<String, Object> change = new LinkedHashMap<>();
+                        change.put("path", path);
+                        change.put("before", toJsonValue(before, path));
+                        change.put("after", toJsonValue(after, path));
+                        changes.add(change);
+                    }
+                }
+            }
+            if (excludeList != null) {
+                setExcludeList(root, excludeList);
+            }
+        }
+
+        private static void addChange(List<Map<String, Object>> changes, String path, Object before, Object after) {
+            if (!Objects.equals(before, after)) {
+                Map<String, Object> change = new LinkedHashMap<>();
+                change.put("path", path);
+                change.put("before", before);
+                change.put("after", after);
+                changes.add(change);
+            }
+        }
+    }
+
+    private static class PatchStep {
+        final String path;
+        final int kind;
+        final JsonElement value;
+        final ListPatch list;
+
+        PatchStep(String path, int kind, JsonElement value, ListPatch list) {
+            this.path = path;
+            this.kind = kind;
+            this.value = value;
+            this.list = list;
+        }
+    }
+
+    private static class ListPatch {
+        final String op;
+        final List<String> values;
+        final Set<String> valueSet;
+        final Pattern pattern;
+        final String replacement;
+        final int maxAlternation;
+        final List<ListPatch> sequence;
+
+        private ListPatch(String op, List<String> values, Pattern pattern, String replacement, int maxAlternation,
+                          List<ListPatch> sequence) {
+            this.op = op;
+            this.values = values;
+            this.valueSet = "remove".equals(op) || "retain".equals(op) ? new HashSet<>(values) : null;
+            this.pattern = pattern;
+            this.replacement = replacement;
+            this.maxAlternation = maxAlternation;
+            this.sequence = sequence;
+        }
+
+        private static ListPatch of(String op, List<String> values) {
+            return new ListPatch(op, values, null, null, 0, null);
+        }
+
+        static ListPatch compile(JsonElement patch, boolean patterns) throws CliException {
+            if (patch == null || patch.isJsonNull()) {
+                throw new CliException(ERROR_VALIDATION, 1, "List patch cannot be null", null);
+            }
+
+            if (patch.isJsonArray()) {
+                JsonArray array = patch.getAsJsonArray();
+                if (array.size() == 0 || !array.get(0).isJsonObject()) {
+                    return of("set", jsonArrayToList(array));
+                }
+                List<ListPatch> sequence = new ArrayList<>(array.size());
+                for (JsonElement step : array) {
+                    if (step == null || !step.isJsonObject()) {
+                        throw new CliException(ERROR_VALIDATION, 1, "List patch sequence must contain only op objects", null);
+                    }
+                    sequence.add(compile(step, patterns));
+                }
+                return new ListPatch("sequence", null, null, null, 0, sequence);
+            }
+
+            if (!patch.isJsonObject()) {
+                throw new CliException(ERROR_VALIDATION, 1, "Invalid list patch format", null);
+            }
+            return compileOp(patch.getAsJsonObject(), null, patterns);
+        }
+
+        static ListPatch read(JsonReader in, boolean patterns) throws IOException, CliException {
+            JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                throw new CliException(ERROR_VALIDATION, 1, "List patch cannot be null", null);
+            }
+
+            if (token == JsonToken.BEGIN_ARRAY) {
+                in.beginArray();
+                if (!in.hasNext() || in.peek() != JsonToken.BEGIN_OBJECT) {
+                    List<String> values = readValues(in);
+                    in.endArray();
+                    return of("set", values);
+                }
+                List<ListPatch> sequence = new ArrayList<>();
+                while (in.hasNext()) {
+                    if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                        throw new CliException(ERROR_VALIDATION, 1, "List patch sequence must contain only op objects", null);
+                    }
+                    sequence.add(readOp(in, patterns));
+                }
+                in.endArray();
+                return new ListPatch("sequence", null, null, null, 0, sequence);
+            }
+
+            if (token != JsonToken.BEGIN_OBJECT) {
+                throw new CliException(ERROR_VALIDATION, 1, "Invalid list patch format", null);
+            }
+            return readOp(in, patterns);
+        }
+
+        private static ListPatch readOp(JsonReader in, boolean patterns) throws IOException, CliException {
+            JsonObject opObj = new JsonObject();
+            List<String> values = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("values".equals(name) && in.peek() == JsonToken.BEGIN_ARRAY) {
+                    in.beginArray();
+                    values = readValues(in);
+                    in.endArray();
+                    opObj.remove(name);
+                } else {
+                    opObj.add(name, JsonParser.parseReader(in));
+                    if ("values".equals(name)) {
+                        values = null;
+                    }
+                }
+            }
+            in.endObject();
+            return compileOp(opObj, values, patterns);
+        }
+
+        private static List<String> readValues(JsonReader in) throws IOException, CliException {
+            List<String> values = new ArrayList<>();
+            while (in.hasNext()) {
+                JsonToken token = in.peek();
+                if (token == JsonToken.NULL) {
+                    in.nextNull();
+                    values.add(null);
+                } else if (token == JsonToken.BOOLEAN) {
+                    values.add(String.valueOf(in.nextBoolean()));
+                } else if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                    values.add(in.nextString());
+                } else {
+                    throw new CliException(ERROR_VALIDATION, 1, "List values must be primitives", null);
+                }
+            }
+            return values;
+        }
+
+        private static ListPatch compileOp(JsonObject opObj, List<String> streamed, boolean patterns)
+                throws CliException {
+            String op = getJsonString(opObj, "op");
+            if (op == null) {
+                throw new CliException(ERROR_VALIDATION, 1, "List patch missing op", null);
+            }
+            String opLower = op.toLowerCase(Locale.ROOT);
+
+            if ("clear".equals(opLower) || "dedupe".equals(opLower)) {
+                return of(opLower, null);
+            }
+
+            if ("replace".equals(opLower)) {
+                String regex = getJsonString(opObj, "pattern");
+                if (regex == null) {
+                    throw new CliException(ERROR_VALIDATION, 1, "List patch replace requires pattern", null);
+                }
+                String replacement = getJsonString(opObj, "replacement");
+                try {
+                    return new ListPatch(opLower, null, Pattern.compile(regex), replacement == null ? "" : replacement,
+                            0, null);
+                } catch (PatternSyntaxException ex) {
+                    throw new CliException(ERROR_VALIDATION, 1, "Invalid replace pattern: " + regex, null);
+                }
+            }
+
+            if ("compact".equals(opLower)) {
+                if (!patterns) {
+                    throw new CliException(ERROR_VALIDATION, 1, "List patch compact only applies to pattern lists", null);
+                }
+                int maxAlternation = DEFAULT_MAX_ALTERNATION;
+                JsonElement limit = opObj.get("maxAlternation");
+                if (limit != null && !limit.isJsonNull()) {
+                    try {
+                        maxAlternation = limit.getAsInt();
+                    } catch (Exception ex) {
+                        maxAlternation = 0;
+                    }
+                    if (maxAlternation < 2) {
+                        throw new CliException(ERROR_VALIDATION, 1, "maxAlternation must be an integer of at least 2", null);
+                    }
+                }
+                return new ListPatch(opLower, null, null, null, maxAlternation, null);
+            }
+
+            if ("set".equals(opLower)) {
+                return of(opLower, opValues(opObj, streamed, "List patch set requires values array"));
+            }
+
+            List<String> values = opValues(opObj, streamed, "List patch requires values array");
+            if ("append".equals(opLower) || "append_unique".equals(opLower) || "prepend".equals(opLower)
+                    || "remove".equals(opLower) || "retain".equals(opLower)) {
+                return of(opLower, values);
+            }
+
+            throw new CliException(ERROR_VALIDATION, 1, "Unsupported list patch op: " + op, null);
+        }
+
+        private static List<String> opValues(JsonObject opObj, List<String> streamed, String message)
+                throws CliException {
+            if (streamed != null) {
+                return streamed;
+            }
+            JsonElement values = opObj.get("values");
+            if (values == null || !values.isJsonArray()) {
+                throw new CliException(ERROR_VALIDATION, 1, message, null);
+            }
+            return jsonArrayToList(values.getAsJsonArray());
+        }
+
+        List<String> apply(List<String> before) throws CliException {
+            if ("sequence".equals(op)) {
+                List<String> current = before;
+                for (ListPatch step : sequence) {
+                    current = step.apply(current);
+                }
+                return current == null ? new ArrayList<>() : current;
+            }
+            if ("set".equals(op)) {
+                return new ArrayList<>(values);
+            }
+            if ("clear".equals(op)) {
+                return new ArrayList<>();
+            }
+
+            List<String> base = before == null ? new ArrayList<>() : new ArrayList<>(before);
+            if ("dedupe".equals(op)) {
+                return new ArrayList<>(new LinkedHashSet<>(base));
+            }
+            if ("replace".equals(op)) {
+                return replace(base);
+            }
+            if ("compact".equals(op)) {
+                return PatternOptimizer.compact(base, maxAlternation);
+            }
+            if ("append".equals(op)) {
+                base.addAll(values);
+                return base;
+            }
+            if ("append_unique".equals(op)) {
+                Set<String> seen = new HashSet<>(base);
+                for (String value : values) {
+                    if (seen.add(value)) {
+                        base.add(value);
+                    }
+                }
+                return base;
+            }
+            if ("prepend".equals(op)) {
+                List<String> out = new ArrayList<>(values);
+                out.addAll(base);
+                return out;
+            }
+            if ("remove".equals(op)) {
+                base.removeIf(valueSet::contains);
+                return base;
+            }
+            base.removeIf(item -> !valueSet.contains(item));
+            return base;
+        }
+
+        private List<String> replace(List<String> base) throws CliException {
+            Matcher matcher = pattern.matcher("");
+            List<String> out = new ArrayList<>(base.size());
+            for (String item : base) {
+                if (item == null) {
+                    out.add(null);
+                    continue;
+                }
+                matcher.reset(item);
+                try {
+                    out.add(matcher.find() ? matcher.replaceAll(replacement) : item);
+                } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                    throw new CliException(ERROR_VALIDATION, 1, "Invalid replacement: " + ex.getMessage(), null);
+                }
+            }
+            return out;
+        }
+    }
+
+    private static class ListEdit {
+        final boolean insert;
+        final int indexA;
+        final int indexB;
+        final List<String> values = new ArrayList<>();
+
+        ListEdit(boolean insert, int indexA, int indexB) {
+            this.insert = insert;
+            this.indexA = indexA;
+            this.indexB = indexB;
+        }
+
+        static List<ListEdit> script(List<String> a, List<String> b, int maxEdits) {
+            int prefix = 0;
+            int limit = Math.min(a.size(), b.size());
+            while (prefix < limit && Objects.equals(a.get(prefix), b.get(prefix))) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < limit - prefix
+                    && Objects.equals(a.get(a.size() - 1 - suffix), b.get(b.size() - 1 - suffix))) {
+                suffix++;
+            }
+            int n = a.size() - prefix - suffix;
+            int m = b.size() - prefix - suffix;
+            int max = Math.min(n + m, maxEdits);
+            int offset = max + 1;
+            int[] v = new int[2 * max + 3];
+            List<int[]> trace = new ArrayList<>();
+            int distance = -1;
+            for (int d = 0; d <= max && distance < 0; d++) {
+                for (int k = -d; k <= d; k += 2) {
+                    int x = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])
+                            ? v[offset + k + 1]
+                            : v[offset + k - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && Objects.equals(a.get(prefix + x), b.get(prefix + y))) {
+                        x++;
+                        y++;
+                    }
+                    v[offset + k] = x;
+                    if (x >= n && y >= m) {
+                        distance = d;
+                        break;
+                    }
+                }
+                trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+            }
+            if (distance < 0) {
+                return null;
+            }
+
+            Deque<boolean[]> ops = new ArrayDeque<>();
+            Deque<int[]> positions = new ArrayDeque<>();
+            int x = n;
+            int y = m;
+            for (int d = distance; d > 0; d--) {
+                int[] previous = trace.get(d - 1);
+                int k = x - y;
+                boolean down = k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1]);
+                int prevK = down ? k + 1 : k - 1;
+                int prevX = previous[prevK + d - 1];
+                int prevY = prevX - prevK;
+                while (x > prevX && y > prevY) {
+                    x--;
+                    y--;
+                }
+                ops.push(new boolean[]{down});
+                positions.push(new int[]{prevX, prevY});
+                x = prevX;
+                y = prevY;
+            }
+
+            List<ListEdit> edits = new ArrayList<>();
+            ListEdit current = null;
+            while (!ops.isEmpty()) {
+                boolean insert = ops.pop()[0];
+                int[] at = positions.pop();
+                int indexA = prefix + at[0];
+                int indexB = prefix + at[1];
+                boolean contiguous = current != null && current.insert == insert
+                        && (insert ? current.indexB + current.values.size() == indexB && current.indexA == indexA
+                                   : current.indexA + current.values.size() == indexA && current.indexB == indexB);
+                if (!contiguous) {
+                    current = new ListEdit(insert, indexA, indexB);
+                    edits.add(current);
+                }
+                current.values.add(insert ? b.get(indexB) : a.get(indexA));
+            }
+            return edits;
+        }
+    }
+
+    private static class MerkleIndex {
+        private final Map<Object, Node> nodes = new IdentityHashMap<>();
+
+        private static class Node {
+            final Object obj;
+            final List<Field> fields;
+            final MessageDigest digest = sha256();
+            final List<Object> children = new ArrayList<>();
+            int index;
+            int element;
+            int references;
+            boolean opaque;
+            boolean shareFree;
+            byte[] hash;
+
+            Node(Object obj) {
+                this.obj = obj;
+                this.fields = ClassMeta.of(obj.getClass()).instanceFields;
+            }
+        }
+
+        static MerkleIndex build(Object root) {
+            MerkleIndex index = new MerkleIndex();
+            if (!shouldRecurse(root)) {
+                return index;
+            }
+            List<Node> finished = new ArrayList<>();
+            Deque<Node> stack = new ArrayDeque<>();
+            Node first = new Node(root);
+            first.references = 1;
+            index.nodes.put(root, first);
+            updateString(first.digest, root.getClass().getName());
+            stack.push(first);
+
+            while (!stack.isEmpty()) {
+                Node node = stack.peek();
+                if (node.index >= node.fields.size()) {
+                    node.hash = node.digest.digest();
+                    finished.add(stack.pop());
+                    continue;
+                }
+                Field field = node.fields.get(node.index);
+                Object value;
+                try {
+                    value = field.get(node.obj);
+                } catch (IllegalAccessException ex) {
+                    node.index++;
+                    updateString(node.digest, field.getName());
+                    node.digest.update((byte) 'E');
+                    continue;
+                }
+                if (shouldRecurse(value)) {
+                    Node child = index.nodes.get(value);
+                    if (child == null) {
+                        child = new Node(value);
+                        index.nodes.put(value, child);
+                        updateString(child.digest, value.getClass().getName());
+                        stack.push(child);
+                        continue;
+                    }
+                    node.index++;
+                    child.references++;
+                    node.children.add(value);
+                    updateString(node.digest, field.getName());
+                    if (child.hash == null) {
+                        node.digest.update((byte) 'C');
+                        updateString(node.digest, value.getClass().getName());
+                    } else {
+                        node.digest.update((byte) 'O');
+                        node.digest.update(child.hash);
+                    }
+                    continue;
+                }
+
+                if (value instanceof List && pushListElement(index, stack, node, (List<?>) value)) {
+                    continue;
+                }
+
+                node.index++;
+                updateString(node.digest, field.getName());
+                if (value == null) {
+                    node.digest.update((byte) 'N');
+                } else if (isLeafValue(value)) {
+                    node.digest.update((byte) 'L');
+                    updateString(node.digest, value.getClass().getName());
+                    updateString(node.digest, value instanceof Enum ? ((Enum<?>) value).name() : String.valueOf(value));
+                    if (value instanceof Map) {
+                        node.opaque = true;
+                    }
+                } else if (value instanceof List) {
+                    List<?> items = (List<?>) value;
+                    node.digest.update((byte) 'S');
+                    updateString(node.digest, Integer.toString(items.size()));
+                    for (Object item : items) {
+                        if (item == null) {
+                            node.digest.update((byte) 'N');
+                        } else if (isLeafType(item.getClass())) {
+                            node.digest.update((byte) 'V');
+                            updateString(node.digest, item.toString());
+                        } else if (shouldRecurse(item)) {
+                            Node child = index.nodes.get(item);
+                            child.references++;
+                            node.children.add(item);
+                            node.opaque = true;
+                            node.digest.update(child.hash == null ? (byte) 'C' : (byte) 'O');
+                            if (child.hash == null) {
+                                updateString(node.digest, item.getClass().getName());
+                            } else {
+                                node.digest.update(child.hash);
+                            }
+                        } else {
+                            node.opaque = true;
+                            node.digest.update((byte) 'X');
+                            updateString(node.digest, item.getClass().getName());
+                        }
+                    }
+                } else if (value instanceof Collection) {
+                    List<String> items = new ArrayList<>();
+                    boolean leaves = true;
+                    for (Object item : (Collection<?>) value) {
+                        leaves &= item == null || isLeafType(item.getClass());
+                        items.add(String.valueOf(item));
+                    }
+                    node.digest.update((byte) 'X');
+                    updateString(node.digest, value.getClass().getName());
+                    if (leaves) {
+                        Collections.sort(items);
+                        for (String item : items) {
+                            updateString(node.digest, item);
+                        }
+                    }
+                } else {
+                    node.digest.update((byte) 'X');
+                    updateString(node.digest, value.getClass().getName());
+                }
+            }
+
+            for (Node node : finished) {
+                boolean shareFree = !node.opaque;
+                for (Object child : node.children) {
+                    Node childNode = index.nodes.get(child);
+                    if (childNode.references != 1 || !childNode.shareFree) {
+                        shareFree = false;
+                        break;
+                    }
+                }
+                node.shareFree = shareFree;
+            }
+            return index;
+        }
+
+        private static boolean pushListElement(MerkleIndex index, Deque<Node> stack, Node node, List<?> items) {
+            for (; node.element < items.size(); node.element++) {
+                Object item = items.get(node.element);
+                if (shouldRecurse(item) && !index.nodes.containsKey(item)) {
+                    Node child = new Node(item);
+                    index.nodes.put(item, child);
+                    updateString(child.digest, item.getClass().getName());
+                    stack.push(child);
+                    return true;
+                }
+            }
+            node.element = 0;
+            return false;
+        }
+
+        String hash(Object obj) {
+            Node node = nodes.get(obj);
+            return node == null ? null : toHex(Arrays.copyOf(node.hash, 16));
+        }
+
+        boolean identical(Object obj, MerkleIndex other, Object otherObj) {
+            Node node = nodes.get(obj);
+            Node otherNode = other.nodes.get(otherObj);
+            return node != null && otherNode != null && node.shareFree && otherNode.shareFree
+                    && Arrays.equals(node.hash, otherNode.hash);
+        }
+
+        private static void updateString(MessageDigest digest, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            digest.update((byte) (bytes.length >>> 24));
+            digest.update((byte) (bytes.length >>> 16));
+            digest.update((byte) (bytes.length >>> 8));
+            digest.update((byte) bytes.length);
+            digest.update(bytes);
+        }
+    }
+
+    private static class FieldInfo {
+        String type;
+        Object value;
+        List<String> enumOptions;
+        Integer length;
+        boolean isList;
+
+        FieldInfo(String type, Object value) {
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static class ConfigSchema {
+        private static final int FORMAT = 1;
+        private static ConfigSchema loaded;
+
+        final String sfJarHash;
+        final Path file;
+        private String sfVersion;
+        private String rootClass;
+        private List<Map<String, Object>> classes;
+        private List<Map<String, Object>> fields;
+        private final Map<String, String> typeNames = new ConcurrentHashMap<>();
+        private final Map<String, List<String>> enumConstants = new ConcurrentHashMap<>();
+        private Map<String, Map<String, Object>> fieldIndex;
+        private volatile boolean dirty;
+
+        private ConfigSchema(String sfJarHash, Path file) {
+            this.sfJarHash = sfJarHash;
+            this.file = file;
+        }
+
+        static synchronized ConfigSchema current() {
+            Path jar = locateSfJar();
+            String hash = null;
+            if (jar != null) {
+                try {
+                    hash = jarSetHash(Collections.singletonList(jar));
+                } catch (CliException ex) {
+                    hash = null;
+                }
+            }
+            if (loaded != null && Objects.equals(loaded.sfJarHash, hash)) {
+                return loaded;
+            }
+            Path file = hash == null ? null : cacheDir(launchArgs).resolve("schema-" + hash + ".json");
+            loaded = new ConfigSchema(hash, file);
+            if (file != null && Files.isRegularFile(file)) {
+                loaded.read();
+            }
+            return loaded;
+        }
+
+        String typeName(Class<?> type) {
+            String name = typeNames.get(type.getName());
+            if (name == null) {
+                name = typeNameFor(type);
+                typeNames.put(type.getName(), name);
+                dirty = true;
+            }
+            return name;
+        }
+
+        List<String> enumOptions(Class<?> type) {
+            List<String> options = enumConstants.get(type.getName());
+            if (options == null) {
+                options = ConfigBuilder.enumOptions(type);
+                if (options == null) {
+                    return null;
+                }
+                options = Collections.unmodifiableList(options);
+                enumConstants.put(type.getName(), options);
+                dirty = true;
+            }
+            return options;
+        }
+
+        synchronized boolean hasFields() {
+            return fields != null;
+        }
+
+        synchronized void capture(Object root, Map<String, FieldInfo> fieldMap, String sfVersion) {
+            if (fields != null) {
+                return;
+            }
+            this.sfVersion = sfVersion;
+            this.rootClass = root.getClass().getName();
+
+            List<Map<String, Object>> catalogue = new ArrayList<>();
+            for (Map.Entry<String, FieldInfo> entry : fieldMap.entrySet()) {
+                FieldInfo info = entry.getValue();
+                Map<String, Object> field = new LinkedHashMap<>();
+                field.put("path", entry.getKey());
+                field.put("type", info.type);
+                if (info.enumOptions != null) {
+                    field.put("enumOptions", info.enumOptions);
+                }
+                field.put("editable", isEditable(entry.getKey()));
+                field.put("list", info.isList);
+                catalogue.add(field);
+            }
+
+            List<Map<String, Object>> layouts = new ArrayList<>();
+            Set<Class<?>> visited = new HashSet<>();
+            Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<Object> stack = new ArrayDeque<>();
+            stack.push(root);
+            seen.add(root);
+            while (!stack.isEmpty()) {
+                Object obj = stack.pop();
+                Class<?> cls = obj.getClass();
+                boolean first = visited.add(cls);
+                List<Map<String, Object>> layout = new ArrayList<>();
+                for (Field field : ClassMeta.of(cls).instanceFields) {
+                    if (first) {
+                        Map<String, Object> entry = new LinkedHashMap<>();
+                        entry.put("name", field.getName());
+                        entry.put("type", typeName(field.getType()));
+                        entry.put("javaType", field.getType().getName());
+                        if (field.getType().isEnum()) {
+                            entry.put("enumOptions", enumOptions(field.getType()));
+                        }
+                        layout.add(entry);
+                    }
+                    Object value;
+                    try {
+                        value = field.get(obj);
+                    } catch (IllegalAccessException ex) {
+                        continue;
+                    }
+                    if (shouldRecurse(value) && seen.add(value)) {
+                        stack.push(value);
+                    }
+                }
+                if (first) {
+                    Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("name", cls.getName());
+                    entry.put("fields", layout);
+                    layouts.add(entry);
+                }
+            }
+            layouts.sort(Comparator.comparing(entry -> (String) entry.get("name")));
+
+            this.classes = layouts;
+            this.fields = catalogue;
+            this.fieldIndex = null;
+            this.dirty = true;
+        }
+
+        synchronized Map<String, Object> field(String path) {
+            if (fieldIndex == null) {
+                fieldIndex = new HashMap<>();
+                if (fields != null) {
+                    for (Map<String, Object> field : fields) {
+                        fieldIndex.put((String) field.get("path"), field);
+                    }
+                }
+            }
+            return fieldIndex.get(path);
+        }
+
+        synchronized Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("format", FORMAT);
+            json.put("sfJarHash", sfJarHash);
+            json.put("sfVersion", sfVersion);
+            json.put("rootClass", rootClass);
+            json.put("fields", fields);
+            json.put("classes", classes);
+            json.put("enums", new TreeMap<>(enumConstants));
+            json.put("typeNames", new TreeMap<>(typeNames));
+            return json;
+        }
+
+        synchronized void saveIfDirty() {
+            if (!dirty || file == null) {
+                return;
+            }
+            dirty = false;
+            try {
+                writeCacheFile(file, GSON.toJson(toJson()));
+                try (Stream<Path> stale = Files.list(file.getParent())) {
+                    for (Path old : stale.collect(Collectors.toList())) {
+                        String name = old.getFileName().toString();
+                        if (name.startsWith("schema-") && name.endsWith(".json") && !old.equals(file)) {
+                            Files.deleteIfExists(old);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                // Unwritable cache directory; the snapshot stays in memory for this process.
+            }
+        }
+
+        private synchronized void read() {
+            JsonObject json;
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                json = JsonParser.parseReader(reader).getAsJsonObject();
+            } catch (Exception ex) {
+                return;
+            }
+            if (!json.has("format") || json.get("format").getAsInt() != FORMAT) {
+                return;
+            }
+            Type listOfMaps = new TypeToken<List<Map<String, Object>>>() { }.getType();
+            if (json.has("typeNames")) {
+                for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("typeNames").entrySet()) {
+                    typeNames.put(entry.getKey(), entry.getValue().getAsString());
+                }
+            }
+            if (json.has("enums")) {
+                for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("enums").entrySet()) {
+                    List<String> options = new ArrayList<>();
+                    for (JsonElement item : entry.getValue().getAsJsonArray()) {
+                        options.add(item.getAsString());
+                    }
+                    enumConstants.put(entry.getKey(), Collections.unmodifiableList(options));
+                }
+            }
+            sfVersion = json.has("sfVersion") && !json.get("sfVersion").isJsonNull() ? json.get("sfVersion").getAsString() : null;
+            rootClass = json.has("rootClass") && !json.get("rootClass").isJsonNull() ? json.get("rootClass").getAsString() : null;
+            if (json.has("fields") && json.get("fields").isJsonArray()) {
+                fields = GSON.fromJson(json.get("fields"), listOfMaps);
+                classes = json.has("classes") && json.get("classes").isJsonArray()
+                        ? GSON.fromJson(json.get("classes"), listOfMaps)
+                        : new ArrayList<>();
+            }
+        }
+    }
+
+    private interface JsonStreamable {
+        void writeTo(JsonWriter out) throws IOException;
+    }
+
+    private interface RuleFactory {
+        Object create() throws CliException;
+    }
+
+    private static class RuleOp {
+        static final int CLEAR = 0;
+        static final int REMOVE = 1;
+        static final int ADD = 2;
+
+        final int kind;
+        final String name;
+        final RuleFactory factory;
+
+        RuleOp(int kind, String name, RuleFactory factory) {
+            this.kind = kind;
+            this.name = name;
+            this.factory = factory;
+        }
+    }
+
+    private static class TraversalFrame {
+        final Object obj;
+        final String path;
+        final int depth;
+        final List<Field> fields;
+        int index;
+
+        TraversalFrame(Object obj, String path, int depth) {
+            this.obj = obj;
+            this.path = path;
+            this.depth = depth;
+            this.fields = ClassMeta.of(obj.getClass()).instanceFields;
+        }
+    }
+
+    private static class ConfigStore {
+        private static final int FORMAT = 1;
+        private static final int PARSED_SUBTREES = 512;
+        private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_][A-Za-z0-9._-]*");
+        private static final Map<Path, ConfigStore> OPEN = new ConcurrentHashMap<>();
+
+        final Path dir;
+        private final Map<String, Object> parsed = Collections.synchronizedMap(
+                new LinkedHashMap<String, Object>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                        return size() > PARSED_SUBTREES;
+                    }
+                });
+
+        private ConfigStore(Path dir) {
+            this.dir = dir;
+        }
+
+        static ConfigStore open(Path dir) {
+            return OPEN.computeIfAbsent(dir, ConfigStore::new);
+        }
+
+        static String validateName(String name) throws CliException {
+            if (!NAME.matcher(name).matches()) {
+                throw new CliException(ERROR_VALIDATION, 1, "Invalid store entry name: " + name, null);
+            }
+            return name;
+        }
+
+        Map<String, Object> put(String name, Object root) throws CliException {
+            byte[] original = serialize(root);
+            Map<String, byte[]> subtrees = new LinkedHashMap<>();
+            Map<String, String> aliases = new LinkedHashMap<>();
+            Map<String, Object> detached = new LinkedHashMap<>();
+            Map<Object, String> owners = new IdentityHashMap<>();
+            ClassMeta meta = ClassMeta.of(root.getClass());
+            byte[] shell;
+            try {
+                for (Field field : meta.instanceFields) {
+                    String fieldName = field.getName();
+                    if (Modifier.isTransient(field.getModifiers()) || detached.containsKey(fieldName)) {
+                        continue;
+                    }
+                    Object value = meta.accessor(fieldName).get(root);
+                    if (value == null || value == root || isLeafType(value.getClass())) {
+                        continue;
+                    }
+                    String owner = owners.putIfAbsent(value, fieldName);
+                    if (owner != null) {
+                        aliases.put(fieldName, owner);
+                    } else {
+                        subtrees.put(fieldName, serialize(value));
+                    }
+                    detached.put(fieldName, value);
+                }
+                for (String field : detached.keySet()) {
+                    meta.accessor(field).set(root, null);
+                }
+                try {
+                    shell = serialize(root);
+                } finally {
+                    for (Map.Entry<String, Object> entry : detached.entrySet()) {
+                        meta.accessor(entry.getKey()).set(root, entry.getValue());
+                    }
+                }
+            } catch (IllegalAccessException | RuntimeException ex) {
+                subtrees.clear();
+                aliases.clear();
+                shell = null;
+            }
+
+            JsonObject manifest = new JsonObject();
+            manifest.addProperty("format", FORMAT);
+            manifest.addProperty("name", name);
+            manifest.addProperty("rootClass", root.getClass().getName());
+            manifest.addProperty("configVersion", readConfigVersion(root));
+            manifest.addProperty("bytes", original.length);
+            boolean split = shell != null && !subtrees.isEmpty()
+                    && Arrays.equals(original, rebuild(shell, subtrees, aliases));
+
+            long[] written = new long[2];
+            try {
+                if (split) {
+                    manifest.addProperty("shell", storeBlob(shell, written));
+                    JsonObject refs = new JsonObject();
+                    for (Map.Entry<String, byte[]> entry : subtrees.entrySet()) {
+                        refs.addProperty(entry.getKey(), storeBlob(entry.getValue(), written));
+                    }
+                    manifest.add("subtrees", refs);
+                    manifest.add("aliases", GSON.toJsonTree(aliases));
+                } else {
+                    manifest.addProperty("whole", storeBlob(original, written));
+                }
+                writeCacheFile(manifestPath(name), GSON.toJson(manifest));
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to write to store: " + dir, null);
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("split", split);
+            result.put("subtrees", split ? subtrees.size() : 0);
+            result.put("bytes", original.length);
+            result.put("newBlobs", written[0]);
+            result.put("newBlobBytes", written[1]);
+            return result;
+        }
+
+        Object materialize(String name) throws CliException {
+            JsonObject manifest = readManifest(name);
+            if (manifest.has("whole")) {
+                return deserializeBlob(manifest.get("whole").getAsString());
+            }
+            Object root = deserializeBlob(manifest.get("shell").getAsString());
+            ClassMeta meta = ClassMeta.of(root.getClass());
+            for (Map.Entry<String, JsonElement> entry : manifest.getAsJsonObject("subtrees").entrySet()) {
+                String hash = entry.getValue().getAsString();
+                Object subtree = parsed.get(hash);
+                if (subtree == null) {
+                    subtree = deserializeBlob(hash);
+                    parsed.put(hash, subtree);
+                }
+                FieldAccessor accessor = meta.accessor(entry.getKey());
+                if (accessor == null) {
+                    throw new CliException(ERROR_PARSE, 3, "Store entry does not match config class: " + name, null);
+                }
+                try {
+                    accessor.set(root, subtree);
+                } catch (IllegalAccessException | RuntimeException ex) {
+                    throw new CliException(ERROR_PARSE, 3, "Store entry does not match config class: " + name, null);
+                }
+            }
+            JsonObject aliases = manifest.has("aliases") ? manifest.getAsJsonObject("aliases") : new JsonObject();
+            try {
+                for (Map.Entry<String, JsonElement> entry : aliases.entrySet()) {
+                    meta.accessor(entry.getKey()).set(root, meta.accessor(entry.getValue().getAsString()).get(root));
+                }
+            } catch (IllegalAccessException | RuntimeException ex) {
+                throw new CliException(ERROR_PARSE, 3, "Store entry does not match config class: " + name, null);
+            }
+            return root;
+        }
+
+        Map<String, Object> list() throws CliException {
+            List<Map<String, Object>> entries = new ArrayList<>();
+            Set<String> referenced = new HashSet<>();
+            long logicalBytes = 0;
+            Path refs = dir.resolve("refs");
+            if (Files.isDirectory(refs)) {
+                try (Stream<Path> files = Files.list(refs)) {
+                    for (Path file : files.sorted().collect(Collectors.toList())) {
+                        String fileName = file.getFileName().toString();
+                        if (!fileName.endsWith(".json")) {
+                            continue;
+                        }
+                        JsonObject manifest = readManifest(fileName.substring(0, fileName.length() - 5));
+                        Map<String, Object> entry = new LinkedHashMap<>();
+                        entry.put("name", manifest.get("name").getAsString());
+                        entry.put("configVersion", getJsonString(manifest, "configVersion"));
+                        entry.put("bytes", manifest.get("bytes").getAsLong());
+                        if (manifest.has("whole")) {
+                            referenced.add(manifest.get("whole").getAsString());
+                            entry.put("subtrees", 0);
+                        } else {
+                            referenced.add(manifest.get("shell").getAsString());
+                            JsonObject subtrees = manifest.getAsJsonObject("subtrees");
+                            for (Map.Entry<String, JsonElement> ref : subtrees.entrySet()) {
+                                referenced.add(ref.getValue().getAsString());
+                            }
+                            entry.put("subtrees", subtrees.size());
+                        }
+                        logicalBytes += manifest.get("bytes").getAsLong();
+                        entries.add(entry);
+                    }
+                } catch (IOException ex) {
+                    throw new CliException(ERROR_IO, 2, "Unable to read store: " + dir, null);
+                }
+            }
+
+            long blobBytes = 0;
+            for (String hash : referenced) {
+                try {
+                    blobBytes += Files.size(blobPath(hash));
+                } catch (IOException ex) {
+                    // Missing blobs surface as errors on get.
+                }
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("entries", entries);
+            result.put("blobs", referenced.size());
+            result.put("logicalBytes", logicalBytes);
+            result.put("blobBytes", blobBytes);
+            return result;
+        }
+
+        private byte[] rebuild(byte[] shell, Map<String, byte[]> subtrees, Map<String, String> aliases) {
+            try {
+                Object root = deserializeConfig(shell, dir);
+                ClassMeta meta = ClassMeta.of(root.getClass());
+                for (Map.Entry<String, byte[]> entry : subtrees.entrySet()) {
+                    meta.accessor(entry.getKey()).set(root, deserializeConfig(entry.getValue(), dir));
+                }
+                for (Map.Entry<String, String> entry : aliases.entrySet()) {
+                    meta.accessor(entry.getKey()).set(root, meta.accessor(entry.getValue()).get(root));
+                }
+                return serialize(root);
+            } catch (CliException | IllegalAccessException | RuntimeException ex) {
+                return null;
+            }
+        }
+
+        private String storeBlob(byte[] data, long[] written) throws IOException {
+            String hash = toHex(sha256().digest(data));
+            Path target = blobPath(hash);
+            if (Files.exists(target)) {
+                return hash;
+            }
+            Files.createDirectories(target.getParent());
+            Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+            try {
+                try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), WRITE_BUFFER_SIZE)) {
+                    out.write(data);
+                }
+                moveReplacing(temp, target);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            written[0]++;
+            written[1] += Files.size(target);
+            return hash;
+        }
+
+        private Object deserializeBlob(String hash) throws CliException {
+            Path path = blobPath(hash);
+            byte[] data;
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(path), WRITE_BUFFER_SIZE)) {
+                data = in.readAllBytes();
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to read store blob: " + path, null);
+            }
+            if (!hash.equals(toHex(sha256().digest(data)))) {
+                throw new CliException(ERROR_PARSE, 3, "Corrupt store blob: " + path, null);
+            }
+            return deserializeConfig(data, path);
+        }
+
+        private JsonObject readManifest(String name) throws CliException {
+            Path path = manifestPath(name);
+            if (!Files.isRegularFile(path)) {
+                throw new CliException(ERROR_VALIDATION, 1, "No such store entry: " + name, null);
+            }
+            try {
+                JsonObject manifest = JsonParser.parseString(Files.readString(path, StandardCharsets.UTF_8)).getAsJsonObject();
+                if (manifest.get("format").getAsInt() != FORMAT) {
+                    throw new CliException(ERROR_PARSE, 3, "Unsupported store entry format: " + path, null);
+                }
+                return manifest;
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to read store entry: " + path, null);
+            } catch (RuntimeException ex) {
+                throw new CliException(ERROR_PARSE, 3, "Invalid store entry: " + path, null);
+            }
+        }
+
+        private Path manifestPath(String name) {
+            return dir.resolve("refs").resolve(name + ".json");
+        }
+
+        private Path blobPath(String hash) {
+            return dir.resolve("objects").resolve(hash.substring(0, 2)).resolve(hash.substring(2) + ".gz");
+        }
+
+        private static byte[] serialize(Object value) throws CliException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(WRITE_BUFFER_SIZE);
+            try (ObjectOutputStream oos = new ObjectOutputStream(buffer)) {
+                oos.writeObject(value);
+            } catch (IOException ex) {
+                throw new CliException(ERROR_IO, 2, "Unable to serialize config: " + ex.getMessage(), null);
+            }
+            return buffer.toByteArray();
+        }
+    }
+
+    private static class ClassMeta {
+        private static final ClassValue<ClassMeta> CACHE = new ClassValue<ClassMeta>() {
+            @Override
+            protected ClassMeta computeValue(Class<?> type) {
+                return new ClassMeta(type);
+            }
+        };
+
+        final List<Field> instanceFields;
+        private final Class<?> type;
+        private final Map<String, Field> byName;
+        private final Map<String, FieldAccessor> accessors = new ConcurrentHashMap<>();
+
+        private ClassMeta(Class<?> cls) {
+            Map<String, Field> byName = new HashMap<>();
+            List<Field> instanceFields = new ArrayList<>();
+            Class<?> current = cls;
+            while (current != null && current != Object.class) {
+                for (Field field : current.getDeclaredFields()) {
+                    try {
+                        field.setAccessible(true);
+                    } catch (RuntimeException ex) {
+                        // Module-protected field; reads report IllegalAccessException as before.
+                    }
+                    byName.putIfAbsent(field.getName(), field);
+                    if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+                        instanceFields.add(field);
+                    }
+                }
+                current = current.getSuperclass();
+            }
+            Field typo = byName.get("mExcludeManger");
+            if (typo != null) {
+                byName.putIfAbsent("mExcludeManager", typo);
+            }
+            this.type = cls;
+            this.byName = byName;
+            this.instanceFields = Collections.unmodifiableList(instanceFields);
+        }
+
+        static ClassMeta of(Class<?> cls) {
+            return CACHE.get(cls);
+        }
+
+        Field field(String name) {
+            return byName.get(name);
+        }
+
+        FieldAccessor accessor(String name) {
+            FieldAccessor accessor = accessors.get(name);
+            if (accessor == null) {
+                Field field = byName.get(name);
+                if (field == null) {
+                    return null;
+                }
+                accessor = accessors.computeIfAbsent(name, key -> new FieldAccessor(type, field));
+            }
+            return accessor;
+        }
+    }
+
+    private static class FieldAccessor {
+        private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+        private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+        final Class<?> owner;
+        private final Field field;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        FieldAccessor(Class<?> owner, Field field) {
+            this.owner = owner;
+            this.field = field;
+            MethodHandle getter = null;
+            MethodHandle setter = null;
+            if (!Modifier.isStatic(field.getModifiers())) {
+                try {
+                    MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup());
+                    VarHandle handle = lookup.unreflectVarHandle(field);
+                    getter = handle.toMethodHandle(VarHandle.AccessMode.GET).asType(GETTER_TYPE);
+                    if (!Modifier.isFinal(field.getModifiers())) {
+                        setter = handle.toMethodHandle(VarHandle.AccessMode.SET).asType(SETTER_TYPE);
+                    }
+                } catch (IllegalAccessException | RuntimeException ex) {
+                    getter = null;
+                    setter = null;
+                }
+            }
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        Class<?> type() {
+            return field.getType();
+        }
+
+        Object get(Object target) throws IllegalAccessException {
+            if (getter == null) {
+                return field.get(target);
+            }
+            try {
+                return (Object) getter.invokeExact(target);
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        void set(Object target, Object value) throws IllegalAccessException {
+            if (setter == null) {
+                field.set(target, value);
+                return;
+            }
+            try {
+                setter.invokeExact(target, value);
+            } catch (ClassCastException | NullPointerException ex) {
+                throw new IllegalArgumentException("Cannot set " + field.getName() + " to " + value, ex);
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    private static class FieldPath {
+        private static final ClassValue<Map<String, FieldPath>> CACHE = new ClassValue<Map<String, FieldPath>>() {
+            @Override
+            protected Map<String, FieldPath> computeValue(Class<?> type) {
+                return new ConcurrentHashMap<>();
+            }
+        };
+
+        private final String[] parts;
+        private final FieldAccessor[] steps;
+
+        private FieldPath(String path) {
+            this.parts = path.split("\\.");
+            this.steps = new FieldAccessor[parts.length];
+        }
+
+        static FieldPath of(Class<?> rootClass, String path) {
+            return CACHE.get(rootClass).computeIfAbsent(path, FieldPath::new);
+        }
+
+        Object parent(Object root) throws CliException {
+            Object current = root;
+            for (int i = 0; i < parts.length - 1; i++) {
+                FieldAccessor step = step(i, current);
+                if (step == null) {
+                    throw new CliException(ERROR_VALIDATION, 1, "Field not found: " + parts[i], null);
+                }
+                Object next;
+                try {
+                    next = step.get(current);
+                } catch (IllegalAccessException ex) {
+                    throw new CliException(ERROR_VALIDATION, 1, "Unable to read field: " + parts[i], null);
+                }
+                if (next == null) {
+                    throw new CliException(ERROR_VALIDATION, 1, "Null field encountered at: " + parts[i], null);
+                }
+                current = next;
+            }
+            return current;
+        }
+
+        FieldAccessor leaf(Object parent) throws CliException {
+            FieldAccessor step = step(parts.length - 1, parent);
+            if (step == null) {
+                throw new CliException(ERROR_VALIDATION, 1, "Field not found: " + parts[parts.length - 1], null);
+            }
+            return step;
+        }
+
+        Object read(Object root) {
+            Object current = root;
+            for (int i = 0; i < parts.length && current != null; i++) {
+                FieldAccessor step = step(i, current);
+                if (step == null) {
+                    return null;
+                }
+                try {
+                    current = step.get(current);
+                } catch (IllegalAccessException ex) {
+                    return null;
+                }
+            }
+            return current;
+        }
+
+        private FieldAccessor step(int index, Object target) {
+            FieldAccessor step = steps[index];
+            if (step != null && step.owner == target.getClass()) {
+                return step;
+            }
+            FieldAccessor resolved = ClassMeta.of(target.getClass()).accessor(parts[index]);
+            if (step == null) {
+                steps[index] = resolved;
+            }
+            return resolved;
+        }
+    }
+
+    private static class IndexedObjectInputStream extends ObjectInputStream {
+        private final Set<String> recorded;
+
+        IndexedObjectInputStream(InputStream in, Set<String> recorded) throws IOException {
+            super(in);
+            this.recorded = recorded;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (recorded != null) {
+                recorded.add(desc.getName());
+            }
+            try {
+                return super.resolveClass(desc);
+            } catch (ClassNotFoundException ex) {
+                Class<?> indexed = ClassIndex.fallbackLoad(desc.getName());
+                if (indexed == null) {
+                    throw ex;
+                }
+                return indexed;
+            }
+        }
+    }
+
+    private static class ClassIndex {
+        private static final String HEADER = "sfconfig-class-index 2";
+        private static final Pattern LEGACY_FILE = Pattern.compile("class-index-[0-9a-f]+\\.txt");
+        private static final Object FALLBACK_LOCK = new Object();
+        private static ClassIndex fallbackIndex;
+        private static IndexClassLoader fallbackLoader;
+
+        final String jarSetHash;
+        final boolean fromCache;
+        private final Map<String, String> classToJar;
+        private final Set<String> jars;
+
+        private ClassIndex(String jarSetHash, Map<String, String> classToJar, Set<String> jars, boolean fromCache) {
+            this.jarSetHash = jarSetHash;
+            this.classToJar = classToJar;
+            this.jars = jars;
+            this.fromCache = fromCache;
+        }
+
+        String jarFor(String className) {
+            return classToJar.get(className);
+        }
+
+        int size() {
+            return classToJar.size();
+        }
+
+        int jarCount() {
+            return jars.size();
+        }
+
+        static ClassIndex load(Path sfDir, Path cacheDir) throws CliException {
+            List<Path> sfJars = sfInstallJars(sfDir);
+            String hash = jarSetHash(sfJars);
+            String dir = sfDir.toAbsolutePath().normalize().toString();
+            String prefix = "class-index-" + toHex(Arrays.copyOf(sha256().digest(dir.getBytes(StandardCharsets.UTF_8)), 8)) + "-";
+            Path indexFile = cacheDir.resolve(prefix + hash + ".txt");
+            if (Files.isRegularFile(indexFile)) {
+                ClassIndex cached = read(indexFile, hash, dir);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            Map<String, String> classToJar = new HashMap<>();
+            Set<String> jars = new LinkedHashSet<>();
+            StringBuilder out = new StringBuilder(HEADER).append('\n')
+                    .append("hash ").append(hash).append('\n')
+                    .append("dir ").append(dir).append('\n');
+            for (Path jar : sfJars) {
+                String jarPath = jar.toString();
+                jars.add(jarPath);
+                out.append("jar ").append(jarPath).append('\n');
+                try (JarFile jarFile = new JarFile(jar.toFile())) {
+                    Enumeration<JarEntry> entries = jarFile.entries();
+                    while (entries.hasMoreElements()) {
+                        String name = entries.nextElement().getName();
+                        if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class")) {
+                            continue;
+                        }
+                        String className = name.substring(0, name.length() - 6).replace('/', '.');
+                        if (classToJar.putIfAbsent(className, jarPath) == null) {
+                            out.append(className).append('\n');
+                        }
+                    }
+                } catch (IOException ex) {
+                    continue;
+                }
+            }
+
+            try {
+                writeCacheFile(indexFile, out.toString());
+                try (Stream<Path> stale = Files.list(cacheDir)) {
+                    for (Path old : stale.collect(Collectors.toList())) {
+                        String name = old.getFileName().toString();
+                        if ((name.startsWith(prefix) || LEGACY_FILE.matcher(name).matches()) && !old.equals(indexFile)) {
+                            Files.deleteIfExists(old);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                // The index still works for this run; it just won't be reused.
+            }
+            return new ClassIndex(hash, classToJar, jars, false);
+        }
+
+        private static ClassIndex read(Path indexFile, String expectedHash, String expectedDir) {
+            Map<String, String> classToJar = new HashMap<>();
+            Set<String> jars = new LinkedHashSet<>();
+            try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                if (!HEADER.equals(reader.readLine())) {
+                    return null;
+                }
+                String hashLine = reader.readLine();
+                if (hashLine == null || !hashLine.equals("hash " + expectedHash)) {
+                    return null;
+                }
+                if (!("dir " + expectedDir).equals(reader.readLine())) {
+                    return null;
+                }
+                String currentJar = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("jar ")) {
+                        currentJar = line.substring(4);
+                        jars.add(currentJar);
+                    } else if (currentJar != null && !line.isEmpty()) {
+                        classToJar.put(line, currentJar);
+                    }
+                }
+            } catch (IOException ex) {
+                return null;
+            }
+            return new ClassIndex(expectedHash, classToJar, jars, true);
+        }
+
+        static Class<?> fallbackLoad(String className) {
+            synchronized (FALLBACK_LOCK) {
+                if (fallbackIndex == null) {
+                    Args args = launchArgs;
+                    Path sfDir = sfInstallDir(args == null ? null : args.options.get("sf-path"));
+                    if (sfDir == null) {
+                        return null;
+                    }
+                    try {
+                        fallbackIndex = load(sfDir, cacheDir(args));
+                    } catch (CliException ex) {
+                        return null;
+                    }
+                    fallbackLoader = new IndexClassLoader(ConfigBuilder.class.getClassLoader(), fallbackIndex);
+                }
+                if (fallbackIndex.jarFor(className) == null) {
+                    return null;
+                }
+                try {
+                    return Class.forName(className, false, fallbackLoader);
+                } catch (Exception | LinkageError ex) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static class IndexClassLoader extends URLClassLoader {
+        private final ClassIndex index;
+        private final Set<String> added = ConcurrentHashMap.newKeySet();
+
+        IndexClassLoader(ClassLoader parent, ClassIndex index) {
+            super(new URL[0], parent);
+            this.index = index;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            String jar = index.jarFor(name);
+            if (jar != null && added.add(jar)) {
+                try {
+                    addURL(Paths.get(jar).toUri().toURL());
+                } catch (MalformedURLException ex) {
+                    throw new ClassNotFoundException(name, ex);
+                }
+            }
+            return super.findClass(name);
+        }
+    }
+
+    private static class SfVersionCache {
+        private static final String FILE_NAME = "sf-version.properties";
+        private static final Map<String, String> MEMO = new ConcurrentHashMap<>();
+
+        static String lookup(Path jar) {
+            String stamp;
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(jar, BasicFileAttributes.class);
+                stamp = attrs.size() + "\t" + attrs.lastModifiedTime().toMillis();
+            } catch (IOException ex) {
+                return null;
+            }
+            String path = jar.toAbsolutePath().normalize().toString();
+            String memoKey = path + "\t" + stamp;
+            String version = MEMO.get(memoKey);
+            if (version == null) {
+                version = lookupSidecar(path, stamp, jar);
+                MEMO.put(memoKey, version);
+            }
+            return version.isEmpty() ? null : version;
+        }
+
+        private static String lookupSidecar(String path, String stamp, Path jar) {
+            Path file = cacheDir(launchArgs).resolve(FILE_NAME);
+            Properties entries = new Properties();
+            if (Files.isRegularFile(file)) {
+                try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    entries.load(reader);
+                } catch (IOException | IllegalArgumentException ex) {
+                    entries.clear();
+                }
+            }
+            String stored = entries.getProperty(path);
+            if (stored != null && stored.startsWith(stamp + "\t")) {
+                return stored.substring(stamp.length() + 1);
+            }
+
+            String version = readManifestVersion(jar);
+            if (version == null) {
+                version = "";
+            }
+            entries.setProperty(path, stamp + "\t" + version);
+            try {
+                StringWriter out = new StringWriter();
+                entries.store(out, null);
+                writeCacheFile(file, out.toString());
+            } catch (IOException ex) {
+                // Unwritable cache directory; the in-process memo still applies.
+            }
+            return version;
+        }
+    }
+
+    private static class EndpointMetrics {
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        void record(long nanos, boolean error) {
+            requests.increment();
+            if (error) {
+                errors.increment();
+            }
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        Map<String, Object> snapshot(double uptimeSeconds) {
+            long count = requests.sum();
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("requests", count);
+            out.put("errors", errors.sum());
+            out.put("rejected", rejected.sum());
+            out.put("inFlight", inFlight.get());
+            out.put("avgLatencyMs", count == 0 ? 0.0 : totalNanos.sum() / 1_000_000.0 / count);
+            out.put("maxLatencyMs", maxNanos.get() / 1_000_000.0);
+            out.put("throughputPerSecond", uptimeSeconds <= 0 ? 0.0 : count / uptimeSeconds);
+            return out;
         }
     }
 
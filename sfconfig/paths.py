@@ -1,10 +1,11 @@
 """Screaming Frog installation path detection."""
 
+import hashlib
 import os
 import platform
 import shutil
 from pathlib import Path
-from typing import Optional
+from typing import List, Optional
 
 from .exceptions import SFNotFoundError
 
@@ -189,6 +190,51 @@ def get_classpath_separator() -> str:
     return ";" if get_platform() == "Windows" else ":"
 
 
+def get_classpath_jars(jar_path: Path, sf_jar_path: str) -> List[Path]:
+    """List the jars the JVM loads for a ``ConfigBuilder.jar{sep}{sf}/*`` classpath.
+
+    Args:
+        jar_path: Path to the bundled ConfigBuilder.jar.
+        sf_jar_path: Path to the directory containing SF's JAR files.
+
+    Returns:
+        ConfigBuilder.jar followed by every jar in the SF directory.
+    """
+    jars = [Path(jar_path)]
+    sf_dir = Path(sf_jar_path)
+    if sf_dir.is_dir():
+        # The JVM classpath wildcard only expands *.jar and *.JAR
+        jars.extend(
+            sorted(p for p in sf_dir.iterdir() if p.is_file() and p.suffix in (".jar", ".JAR"))
+        )
+    return jars
+
+
+def compute_jar_set_hash(jars: List[Path]) -> str:
+    """Fingerprint a set of jars by name, size and modification time.
+
+    Matches the ``jarSetHash`` written by ``ConfigBuilder --create-cds-archive``.
+
+    Args:
+        jars: Jar files on the classpath.
+
+    Returns:
+        Hex-encoded SHA-256 digest, or an empty string if a jar is missing.
+    """
+    lines = []
+    for jar in jars:
+        try:
+            stat = os.stat(jar)
+        except OSError:
+            return ""
+        lines.append(f"{Path(jar).name}\t{stat.st_size}\t{stat.st_mtime_ns // 1_000_000}\n")
+
+    digest = hashlib.sha256()
+    for line in sorted(lines):
+        digest.update(line.encode("utf-8"))
+    return digest.hexdigest()
+
+
 def get_default_config_path() -> Optional[Path]:
     """Get path to SF's default config file location.
 
@@ -1,10 +1,18 @@
 """Tests for SFConfig class."""
 
 import json
+import os
+import shutil
 import pytest
 from unittest.mock import patch, MagicMock
 
-from sfconfig import SFConfig, SFValidationError, SFParseError
+from sfconfig import SFConfig, SFNotFoundError, SFValidationError, SFParseError
+from sfconfig.paths import (
+    compute_jar_set_hash,
+    get_classpath_jars,
+    get_default_config_path,
+    get_sf_jar_path,
+)
 
 
 class TestSFConfigInit:
@@ -339,6 +347,44 @@ class TestSFConfigExcludes:
         assert len(config._exclude_ops) == 1
         assert config._exclude_ops[0] == {"op": "clear"}
 
+    def test_bulk_exclude_ops(self):
+        """Bulk exclude methods should add set-based operations."""
+        config = SFConfig({"fields": []})
+        config.add_excludes(["a", "b"]).remove_excludes(["c"]).retain_excludes(["a"])
+        config.dedupe_excludes().replace_excludes("^http:", "https:")
+
+        assert config._exclude_ops == [
+            {"op": "append_unique", "values": ["a", "b"]},
+            {"op": "remove", "values": ["c"]},
+            {"op": "retain", "values": ["a"]},
+            {"op": "dedupe"},
+            {"op": "replace", "pattern": "^http:", "replacement": "https:"},
+        ]
+
+    def test_compact_ops(self):
+        """compact_excludes/compact_includes should add compact operations."""
+        config = SFConfig({"fields": []})
+        config.compact_excludes().compact_includes()
+
+        assert config._exclude_ops == [{"op": "compact"}]
+        assert config._include_ops == [{"op": "compact"}]
+
+    def test_save_sends_ops_in_order(self):
+        """save() should send every exclude op so later ops don't drop earlier ones."""
+        config = SFConfig({"fields": []}, path="in.seospiderconfig")
+        config.add_exclude("a").remove_exclude("b").add_include("c")
+
+        with patch.object(SFConfig, "_run_java", return_value={"fields": []}) as run:
+            config.save("out.seospiderconfig")
+
+        args = run.call_args_list[0].args
+        patches = json.loads(args[args.index("--patches") + 1])
+        assert patches["mExcludeManager.mExcludePatterns"] == [
+            {"op": "append", "values": ["a"]},
+            {"op": "remove", "values": ["b"]},
+        ]
+        assert patches["mCrawlConfig.mIncludePatterns"] == [{"op": "append", "values": ["c"]}]
+
     def test_excludes_property(self):
         """excludes property should return patterns from data."""
         data = {
@@ -351,6 +397,31 @@ class TestSFConfigExcludes:
         assert config.excludes == ["a", "b"]
 
 
+class TestSFConfigLargePatches:
+    """Tests for sending large patch documents on stdin."""
+
+    def test_large_patches_go_to_stdin(self):
+        """A --patches value over the threshold should be piped as --patches-file -."""
+        patches = json.dumps({"mExcludeManager.mExcludeUrls": ["caf\u00e9" * 100] * 100}, ensure_ascii=False)
+        completed = MagicMock(stdout=b'{"success": true}', stderr=b"")
+        with patch.object(SFConfig, "_java_command", side_effect=lambda *a, **k: list(a)), \
+                patch("sfconfig.config.subprocess.run", return_value=completed) as run:
+            SFConfig._run_java("--build", "--template", "a.seospiderconfig", "--patches", patches)
+
+        assert run.call_args.args[0] == ["--build", "--template", "a.seospiderconfig", "--patches-file", "-"]
+        assert run.call_args.kwargs["input"] == patches.encode("utf-8")
+
+    def test_small_patches_stay_on_command_line(self):
+        """Small patch documents should still be passed as --patches."""
+        completed = MagicMock(stdout='{"success": true}', stderr="")
+        with patch.object(SFConfig, "_java_command", side_effect=lambda *a, **k: list(a)), \
+                patch("sfconfig.config.subprocess.run", return_value=completed) as run:
+            SFConfig._run_java("--build", "--patches", "{}")
+
+        assert run.call_args.args[0] == ["--build", "--patches", "{}"]
+        assert "input" not in run.call_args.kwargs
+
+
 class TestSFConfigFields:
     """Tests for SFConfig.fields method."""
 
@@ -406,3 +477,457 @@ class TestSFConfigRepr:
         config = SFConfig({"fields": []})
 
         assert "unsaved" in str(config)
+
+
+class TestSFConfigCdsArchive:
+    """Tests for AppCDS archive selection."""
+
+    def teardown_method(self):
+        SFConfig.cds_archive = None
+
+    def _setup(self, tmp_path):
+        sf_dir = tmp_path / "sf"
+        sf_dir.mkdir()
+        (sf_dir / "ScreamingFrogSEOSpider.jar").write_bytes(b"jar")
+        (sf_dir / "readme.txt").write_text("not a jar")
+        archive = tmp_path / "sf.jsa"
+        archive.write_bytes(b"archive")
+        jars = get_classpath_jars(SFConfig.JAR_PATH, str(sf_dir))
+        return sf_dir, archive, jars
+
+    def test_classpath_jars_only_include_jars(self, tmp_path):
+        """get_classpath_jars should list ConfigBuilder.jar plus SF's jars."""
+        sf_dir, _, jars = self._setup(tmp_path)
+
+        assert [j.name for j in jars] == ["ConfigBuilder.jar", "ScreamingFrogSEOSpider.jar"]
+
+    def test_cds_options_when_hash_matches(self, tmp_path):
+        """A matching archive should add the shared archive JVM options."""
+        sf_dir, archive, jars = self._setup(tmp_path)
+        metadata = {"jarSetHash": compute_jar_set_hash(jars)}
+        (tmp_path / "sf.jsa.json").write_text(json.dumps(metadata))
+        SFConfig.cds_archive = str(archive)
+
+        options = SFConfig._cds_options(str(sf_dir))
+
+        assert f"-XX:SharedArchiveFile={archive}" in options
+        assert "-Xlog:all=warning:stderr" in options
+
+    def test_cds_options_fall_back_on_mismatch(self, tmp_path):
+        """An archive built for other jars should be ignored."""
+        sf_dir, archive, _ = self._setup(tmp_path)
+        (tmp_path / "sf.jsa.json").write_text(json.dumps({"jarSetHash": "stale"}))
+        SFConfig.cds_archive = str(archive)
+
+        assert SFConfig._cds_options(str(sf_dir)) == []
+
+    def test_cds_options_without_metadata(self, tmp_path):
+        """An archive without metadata should be ignored."""
+        sf_dir, archive, _ = self._setup(tmp_path)
+        SFConfig.cds_archive = str(archive)
+
+        assert SFConfig._cds_options(str(sf_dir)) == []
+
+
+class TestSFConfigMinimalClasspath:
+    """Tests for launching with a resolved minimal classpath."""
+
+    def teardown_method(self):
+        SFConfig.minimal_classpath = {}
+
+    def test_resolve_classpath_stores_jars(self, tmp_path):
+        """resolve_classpath should remember the jars reported by the CLI."""
+        jar = tmp_path / "ScreamingFrogSEOSpider.jar"
+        jar.write_bytes(b"jar")
+        response = {"classpath": [str(jar)], "jarCount": 1, "missingClasses": []}
+        with patch.object(SFConfig, "_run_java", return_value=response) as run:
+            SFConfig.resolve_classpath("sample.seospiderconfig", sf_path=str(tmp_path))
+
+        args = run.call_args.args
+        assert args[:3] == ("--resolve-classpath", "--config", "sample.seospiderconfig")
+        assert "--sf-path" in args
+        assert SFConfig.minimal_classpath == {SFConfig._install_key(str(tmp_path)): [str(jar)]}
+
+    def test_resolve_classpath_ignores_incomplete_result(self, tmp_path):
+        """Unresolved classes should leave the full classpath in place."""
+        response = {"classpath": ["a.jar"], "missingClasses": ["seo.spider.X"]}
+        with patch.object(SFConfig, "_run_java", return_value=response):
+            SFConfig.resolve_classpath("sample.seospiderconfig", sf_path=str(tmp_path))
+
+        assert SFConfig.minimal_classpath == {}
+
+    def test_minimal_classpath_is_per_install(self, tmp_path):
+        """Jars resolved for one SF install should not be used to launch another."""
+        install_a = tmp_path / "a"
+        install_b = tmp_path / "b"
+        install_a.mkdir()
+        install_b.mkdir()
+        jar = install_a / "ScreamingFrogSEOSpider.jar"
+        jar.write_bytes(b"jar")
+        SFConfig.minimal_classpath = {SFConfig._install_key(str(install_a)): [str(jar)]}
+
+        with patch("sfconfig.config.get_java_path", return_value="java"):
+            cmd_a = SFConfig._java_command("--inspect", sf_path=str(install_a))
+            cmd_b = SFConfig._java_command("--inspect", sf_path=str(install_b))
+
+        assert cmd_a[cmd_a.index("-cp") + 1].endswith(str(jar))
+        assert cmd_b[cmd_b.index("-cp") + 1].endswith(str(install_b) + "/*")
+
+    def test_classpath_jars_use_minimal_set(self, tmp_path):
+        """CDS hashing should cover the jars actually on the classpath."""
+        (tmp_path / "other.jar").write_bytes(b"other")
+        jar = tmp_path / "ScreamingFrogSEOSpider.jar"
+        jar.write_bytes(b"jar")
+        SFConfig.minimal_classpath = {SFConfig._install_key(str(tmp_path)): [str(jar)]}
+
+        jars = SFConfig._classpath_jars(str(tmp_path))
+
+        assert [j.name for j in jars] == ["ConfigBuilder.jar", "ScreamingFrogSEOSpider.jar"]
+
+    def test_classpath_jars_fall_back_when_jar_missing(self, tmp_path):
+        """A minimal classpath pointing at removed jars should be ignored."""
+        (tmp_path / "ScreamingFrogSEOSpider.jar").write_bytes(b"jar")
+        (tmp_path / "other.jar").write_bytes(b"other")
+        SFConfig.minimal_classpath = {SFConfig._install_key(str(tmp_path)): [str(tmp_path / "gone.jar")]}
+
+        jars = SFConfig._classpath_jars(str(tmp_path))
+
+        assert [j.name for j in jars] == ["ConfigBuilder.jar", "ScreamingFrogSEOSpider.jar", "other.jar"]
+
+
+class TestSFConfigDiffPrefixes:
+    """Tests for passing prefixes to diff."""
+
+    def test_diff_joins_prefix_list(self):
+        """A list of prefixes should be sent as one comma-separated option."""
+        with patch.object(SFConfig, "_run_java", return_value={"differences": []}) as run:
+            SFConfig.diff("a.seospiderconfig", "b.seospiderconfig", prefix=["mCrawlConfig", "mUserAgentConfig"])
+
+        args = run.call_args.args
+        assert args[args.index("--prefix") + 1] == "mCrawlConfig,mUserAgentConfig"
+
+    def test_diff_passes_single_prefix(self):
+        """A single prefix string should be passed unchanged."""
+        with patch.object(SFConfig, "_run_java", return_value={"differences": []}) as run:
+            SFConfig.diff("a.seospiderconfig", "b.seospiderconfig", prefix="mCrawlConfig")
+
+        args = run.call_args.args
+        assert args[args.index("--prefix") + 1] == "mCrawlConfig"
+
+    def test_diff_passes_list_mode(self):
+        """list_mode should be passed as --list-diff."""
+        with patch.object(SFConfig, "_run_java", return_value={"differences": []}) as run:
+            SFConfig.diff("a.seospiderconfig", "b.seospiderconfig", list_mode="edits")
+
+        args = run.call_args.args
+        assert args[args.index("--list-diff") + 1] == "edits"
+        assert "--prefix" not in args
+
+
+class TestSFConfigSubtreeHashes:
+    """Tests for structural subtree hashes."""
+
+    def test_subtree_hashes_requests_hashes(self):
+        """subtree_hashes() should ask inspect for hashes and return the mapping."""
+        response = {"fields": [], "subtreeHashes": {"": "aa", "mCrawlConfig": "bb"}}
+        with patch.object(SFConfig, "_run_java", return_value=response) as run:
+            hashes = SFConfig.subtree_hashes("a.seospiderconfig", prefix=["mCrawlConfig"])
+
+        assert run.call_args.args == (
+            "--inspect", "--config", "a.seospiderconfig", "--subtree-hashes", "--prefix", "mCrawlConfig",
+        )
+        assert hashes["mCrawlConfig"] == "bb"
+
+
+class TestSFConfigScan:
+    """Tests for the directory drift scan."""
+
+    def test_scan_passes_options(self):
+        """scan() should pass the directory, tolerance and thread count."""
+        response = {"success": True, "files": 3, "distinctConfigs": 2, "groups": []}
+        with patch.object(SFConfig, "_run_java", return_value=response) as run:
+            result = SFConfig.scan("clients", tolerance=0, threads=4)
+
+        assert run.call_args.args == ("--scan", "clients", "--tolerance", "0", "--threads", "4")
+        assert result["distinctConfigs"] == 2
+
+    def test_scan_uses_cli_defaults(self):
+        """scan() should leave tolerance and threads to the CLI defaults."""
+        with patch.object(SFConfig, "_run_java", return_value={"groups": []}) as run:
+            SFConfig.scan("clients")
+
+        assert run.call_args.args == ("--scan", "clients")
+
+
+class TestSFConfigOptimizePatterns:
+    """Tests for the exclude/include pattern optimizer."""
+
+    def test_optimize_patterns_passes_options(self):
+        """optimize_patterns() should pass the sample, flags and output path."""
+        response = {"success": True, "sampleUrls": 10, "lists": []}
+        with patch.object(SFConfig, "_run_java", return_value=response) as run:
+            result = SFConfig.optimize_patterns(
+                "a.seospiderconfig", urls="sample.txt", combine=True,
+                drop_unmatched=True, output="b.seospiderconfig",
+            )
+
+        assert run.call_args.args == (
+            "--optimize-patterns", "--config", "a.seospiderconfig", "--urls", "sample.txt",
+            "--combine", "--drop-unmatched", "--output", "b.seospiderconfig",
+        )
+        assert result["sampleUrls"] == 10
+
+    def test_optimize_patterns_accepts_instance(self):
+        """optimize_patterns() should use the path and SF install of a loaded config."""
+        config = SFConfig({"fields": []}, path="a.seospiderconfig", sf_path="/sf")
+        with patch.object(SFConfig, "_run_java", return_value={"lists": []}) as run:
+            SFConfig.optimize_patterns(config)
+
+        assert run.call_args.args == ("--optimize-patterns", "--config", "a.seospiderconfig")
+        assert run.call_args.kwargs["sf_path"] == "/sf"
+
+
+class TestSFConfigScope:
+    """Tests for the URL scope check."""
+
+    SUMMARY = {"summary": {"urls": 1, "inScope": 1, "outOfScope": 0}}
+
+    def test_scope_sends_url_list_on_stdin(self):
+        """scope() should send a list of URLs on stdin as --urls -."""
+        record = {"url": "https://example.com/", "inScope": True, "rule": "default"}
+        with patch.object(SFConfig, "_run_java_lines", return_value=[record, self.SUMMARY]) as run:
+            result = SFConfig.scope("a.seospiderconfig", ["https://example.com/"], threads=2, chunk_size=100)
+
+        assert run.call_args.args == (
+            "--scope", "--config", "a.seospiderconfig", "--urls", "-",
+            "--threads", "2", "--chunk-size", "100",
+        )
+        assert run.call_args.kwargs["stdin"] == "https://example.com/\n"
+        assert result == {"results": [record], "summary": self.SUMMARY["summary"]}
+
+    def test_scope_reads_url_file(self):
+        """scope() should pass a URL file path through and use a loaded config's SF install."""
+        config = SFConfig({"fields": []}, path="a.seospiderconfig", sf_path="/sf")
+        with patch.object(SFConfig, "_run_java_lines", return_value=[self.SUMMARY]) as run:
+            result = SFConfig.scope(config, "urls.txt")
+
+        assert run.call_args.args == ("--scope", "--config", "a.seospiderconfig", "--urls", "urls.txt")
+        assert run.call_args.kwargs == {"stdin": None, "sf_path": "/sf"}
+        assert result["results"] == []
+
+    def test_run_java_lines_parses_records(self):
+        """_run_java_lines() should parse one record per line, ending with the summary."""
+        stdout = '{"url": "a", "rule": "include"}\n\n{"summary": {"urls": 1}}\n'
+        completed = MagicMock(stdout=stdout.encode("utf-8"), stderr=b"")
+        with patch.object(SFConfig, "_java_command", side_effect=lambda *a, **k: list(a)), \
+                patch("sfconfig.config.subprocess.run", return_value=completed) as run:
+            records = SFConfig._run_java_lines("--scope", "--urls", "-", stdin="caf\u00e9\n")
+
+        assert records == [{"url": "a", "rule": "include"}, {"summary": {"urls": 1}}]
+        assert run.call_args.kwargs["input"] == "caf\u00e9\n".encode("utf-8")
+
+    def test_run_java_lines_raises_error_result(self):
+        """_run_java_lines() should raise when the command fails before streaming."""
+        stdout = '{"success": false, "error": "Missing required argument: urls", "errorType": "VALIDATION_ERROR"}'
+        completed = MagicMock(stdout=stdout, stderr="")
+        with patch.object(SFConfig, "_java_command", side_effect=lambda *a, **k: list(a)), \
+                patch("sfconfig.config.subprocess.run", return_value=completed):
+            with pytest.raises(SFValidationError, match="urls"):
+                SFConfig._run_java_lines("--scope")
+
+
+def _template_config() -> str:
+    """Return a real config to run ConfigBuilder against, or skip the test.
+
+    Needs a Screaming Frog install and a template config, taken from
+    ``SF_TEST_CONFIG`` or SF's own default config.
+    """
+    try:
+        get_sf_jar_path()
+    except SFNotFoundError:
+        pytest.skip("Screaming Frog is not installed")
+    template = os.environ.get("SF_TEST_CONFIG") or get_default_config_path()
+    if not template:
+        pytest.skip("No template config; set SF_TEST_CONFIG")
+    return str(template)
+
+
+class TestScopeRules:
+    """Scope checks against a real ConfigBuilder run."""
+
+    URLS = {
+        "https://example.com/blog/a": "include",
+        "https://user:pw@www.example.com/blog/a": "include",
+        "https://example.com@evil.com/blog/a": "not-allowed-domain",
+        "https://notexample.com/blog/a": "not-allowed-domain",
+        "https://SHOP.test./blog/a": "include",
+        "https://shop.test/blog/a": "include",
+        "http://[::1]:8080/blog/a": "include",
+        "http://[::2]/blog/a": "not-allowed-domain",
+        "https://a.b.example.com/blog/private/1": "exclude",
+        "https://www.example.com/shop": "not-included",
+        "not a url": "invalid-url",
+    }
+
+    @staticmethod
+    def _scoped_config(tmp_path) -> str:
+        output = str(tmp_path / "scope.seospiderconfig")
+        config = SFConfig.load(_template_config())
+        config.set("mCrawlConfig.mAllowedDomains", ["*.example.com", "shop.test.", "::1"])
+        config.set("mCrawlConfig.mIncludePatterns", [".*/blog/.*"])
+        config.set("mExcludeManager.mExcludePatterns", [".*/blog/private.*"])
+        config.save(output)
+        return output
+
+    def test_scope_rules(self, tmp_path):
+        """Userinfo, IPv6 hosts, trailing dots and *. domains resolve; excludes beat includes."""
+        result = SFConfig.scope(self._scoped_config(tmp_path), list(self.URLS))
+
+        assert {r["url"]: r["rule"] for r in result["results"]} == self.URLS
+        assert result["summary"]["allowedDomains"] == 3
+        assert result["summary"]["rules"]["exclude"] == 1
+
+
+class TestSFConfigApplyMany:
+    """Tests for applying one patch set to many templates."""
+
+    def test_apply_many_sends_targets_on_stdin(self):
+        """apply_many() should send a list of templates on stdin and split off the summary."""
+        record = {"index": 0, "template": "a.seospiderconfig", "success": True, "changes": []}
+        summary = {"summary": {"targets": 1, "applied": 1, "failed": 0, "steps": 1}}
+        with patch.object(SFConfig, "_run_java_lines", return_value=[record, summary]) as run:
+            result = SFConfig.apply_many(
+                ["a.seospiderconfig"], patches={"mCrawlConfig.mMaxUrls": 10},
+                output_dir="out", threads=2,
+            )
+
+        assert run.call_args.args == (
+            "--apply-many", "--targets", "-", "--patches", '{"mCrawlConfig.mMaxUrls": 10}',
+            "--output-dir", "out", "--threads", "2",
+        )
+        assert run.call_args.kwargs["stdin"] == "a.seospiderconfig\n"
+        assert result == {"results": [record], "summary": summary["summary"]}
+
+    def test_apply_many_moves_large_patches_to_stdin(self):
+        """apply_many() should stream large patches on stdin when targets come from a file."""
+        patches = {"mExcludeManager.mExcludePatterns": ["https://example.com/.*"] * 1000}
+        summary = {"summary": {"targets": 0, "applied": 0, "failed": 0, "steps": 1}}
+        with patch.object(SFConfig, "_run_java_lines", return_value=[summary]) as run:
+            SFConfig.apply_many("targets.txt", patches=patches, dry_run=True)
+
+        assert run.call_args.args == ("--apply-many", "--targets", "targets.txt", "--patches-file", "-", "--dry-run")
+        assert run.call_args.kwargs["stdin"] == json.dumps(patches)
+
+
+class TestApplyManyCli:
+    """--apply-many checks against a real ConfigBuilder run."""
+
+    PATCHES = {
+        "mCrawlConfig.mMaxUrls": 123,
+        "extractions": [
+            {"op": "add", "name": "Title", "selector": "//title", "selectorType": "XPATH", "extractMode": "TEXT"},
+            {"op": "remove", "name": "Missing"},
+        ],
+    }
+
+    def test_plan_matches_build(self):
+        """Each template should get the same changes and warnings as a single --build."""
+        template = _template_config()
+        result = SFConfig.apply_many([template], patches=self.PATCHES, dry_run=True)
+        built = SFConfig._run_java(
+            "--build", "--template", template, "--output", os.devnull,
+            "--patches", json.dumps(self.PATCHES), "--dry-run",
+        )
+
+        [record] = result["results"]
+        assert record["success"] is True
+        assert record["changes"] == built["changes"]
+        assert record["warnings"] == built["warnings"]
+        assert result["summary"]["targets"] == 1
+        assert result["summary"]["applied"] == 1
+        assert result["summary"]["steps"] == 2
+
+    def test_invalid_rule_op_fails_before_any_template(self):
+        """A malformed extraction op should reject the whole run up front."""
+        template = _template_config()
+        with pytest.raises(SFValidationError, match="Unsupported extraction op"):
+            SFConfig.apply_many([template], patches={"extractions": [{"op": "rename"}]}, dry_run=True)
+
+    def test_duplicate_output_fails(self, tmp_path):
+        """A second template with the same file name should fail instead of overwriting the first."""
+        template = _template_config()
+        first = tmp_path / "a" / "client.seospiderconfig"
+        second = tmp_path / "b" / "client.seospiderconfig"
+        for path in (first, second):
+            path.parent.mkdir()
+            shutil.copy(template, path)
+
+        result = SFConfig.apply_many(
+            [str(first), str(second)], patches={"mCrawlConfig.mMaxUrls": 5}, output_dir=str(tmp_path / "out"),
+        )
+
+        records = sorted(result["results"], key=lambda r: r["index"])
+        assert records[0]["success"] is True
+        assert records[1]["success"] is False
+        assert records[1]["error"].startswith("Duplicate output path")
+        assert result["summary"]["applied"] == 1
+        assert result["summary"]["failed"] == 1
+
+    def test_targets_and_patches_cannot_both_use_stdin(self):
+        """--targets - and --patches-file - should be rejected together."""
+        _template_config()
+        with pytest.raises(SFValidationError, match="cannot both read stdin"):
+            SFConfig.apply_many(["a.seospiderconfig"], patches_file="-", dry_run=True)
+
+
+class TestSFConfigSchema:
+    """Tests for the schema snapshot command."""
+
+    def test_schema_passes_config(self):
+        """schema() should pass the given config for building the snapshot."""
+        response = {"success": True, "cached": False, "fields": []}
+        with patch.object(SFConfig, "_run_java", return_value=response) as run:
+            result = SFConfig.schema("base.seospiderconfig")
+
+        assert run.call_args.args == ("--schema", "--config", "base.seospiderconfig")
+        assert result["cached"] is False
+
+    def test_schema_without_default_config(self):
+        """schema() should still ask for a cached snapshot when no config is known."""
+        with patch("sfconfig.paths.get_default_config_path", return_value=None), \
+                patch.object(SFConfig, "_run_java", return_value={"fields": []}) as run:
+            SFConfig.schema()
+
+        assert run.call_args.args == ("--schema",)
+
+
+class TestSFConfigStore:
+    """Tests for the content-addressed config store commands."""
+
+    def test_store_put_passes_store(self):
+        """store_put() should pass the entry name, config and store directory."""
+        response = {"success": True, "split": True, "subtrees": 5}
+        with patch.object(SFConfig, "_run_java", return_value=response) as run:
+            result = SFConfig.store_put("site-a", "a.seospiderconfig", store="/tmp/store")
+
+        assert run.call_args.args == (
+            "--store-put", "site-a", "--config", "a.seospiderconfig", "--store", "/tmp/store",
+        )
+        assert result["split"] is True
+
+    def test_store_get_loads_output(self):
+        """store_get() should materialize the entry and load the written file."""
+        inspected = {"configVersion": "21.0", "fields": []}
+        with patch.object(SFConfig, "_run_java", side_effect=[{"success": True}, inspected]) as run:
+            config = SFConfig.store_get("site-a", "out.seospiderconfig")
+
+        assert run.call_args_list[0].args == ("--store-get", "site-a", "--output", "out.seospiderconfig")
+        assert run.call_args_list[1].args == ("--inspect", "--config", "out.seospiderconfig")
+        assert config.path == "out.seospiderconfig"
+
+    def test_store_list_default_store(self):
+        """store_list() should leave the store directory to the CLI default."""
+        with patch.object(SFConfig, "_run_java", return_value={"entries": []}) as run:
+            SFConfig.store_list()
+
+        assert run.call_args.args == ("--store-list",)
@@ -0,0 +1,113 @@
+"""Tests for ConfigBuilderDaemon and daemon routing in SFConfig."""
+
+import io
+import json
+import pytest
+from unittest.mock import patch, MagicMock
+
+from sfconfig import ConfigBuilderDaemon, SFConfig, SFConfigError, SFValidationError
+
+
+def _fake_process(responses):
+    """Build a Popen stand-in that answers each request with the next response."""
+    process = MagicMock()
+    process.poll.return_value = None
+    process.stdin = io.StringIO()
+    process.stdout = io.StringIO("".join(json.dumps(r) + "\n" for r in responses))
+    return process
+
+
+class TestConfigBuilderDaemon:
+    """Tests for the JSON-lines daemon client."""
+
+    def test_request_sends_args_and_strips_id(self):
+        """request() should write one JSON line and return the response without id."""
+        process = _fake_process([{"id": 1, "configVersion": "22.0", "fields": []}])
+        with patch("sfconfig.daemon.subprocess.Popen", return_value=process):
+            daemon = ConfigBuilderDaemon(["java", "ConfigBuilder", "--serve"]).start()
+            result = daemon.request(["--inspect", "--config", "a.seospiderconfig"])
+
+        sent = json.loads(process.stdin.getvalue().splitlines()[0])
+        assert sent == {"id": 1, "args": ["--inspect", "--config", "a.seospiderconfig"]}
+        assert result == {"configVersion": "22.0", "fields": []}
+
+    def test_request_raises_when_process_exits(self):
+        """request() should raise if the process closes stdout."""
+        process = _fake_process([])
+        with patch("sfconfig.daemon.subprocess.Popen", return_value=process):
+            daemon = ConfigBuilderDaemon(["java"]).start()
+            with pytest.raises(SFConfigError):
+                daemon.request(["--inspect", "--config", "a.seospiderconfig"])
+
+    def test_request_requires_running_process(self):
+        """request() should raise if the daemon was never started."""
+        daemon = ConfigBuilderDaemon(["java"])
+
+        with pytest.raises(SFConfigError):
+            daemon.request(["--inspect"])
+
+    def test_close_sends_shutdown(self):
+        """close() should ask the process to shut down."""
+        process = _fake_process([])
+        stdin = MagicMock()
+        process.stdin = stdin
+        with patch("sfconfig.daemon.subprocess.Popen", return_value=process):
+            daemon = ConfigBuilderDaemon(["java"]).start()
+            daemon.close()
+
+        written = "".join(call.args[0] for call in stdin.write.call_args_list)
+        assert json.loads(written) == {"command": "shutdown"}
+        assert not daemon.alive
+
+
+class TestSFConfigDaemonRouting:
+    """Tests for routing _run_java through a running daemon."""
+
+    def teardown_method(self):
+        SFConfig._daemon = None
+
+    def test_run_java_uses_daemon(self):
+        """_run_java should send commands to the daemon instead of spawning Java."""
+        daemon = MagicMock()
+        daemon.alive = True
+        daemon.sf_path = None
+        daemon.request.return_value = {"fields": [], "configVersion": "22.0"}
+        SFConfig._daemon = daemon
+
+        with patch("sfconfig.config.subprocess.run") as run:
+            result = SFConfig._run_java("--inspect", "--config", "a.seospiderconfig")
+
+        run.assert_not_called()
+        daemon.request.assert_called_once_with(["--inspect", "--config", "a.seospiderconfig"])
+        assert result["configVersion"] == "22.0"
+
+    def test_run_java_maps_daemon_errors(self):
+        """Error responses from the daemon should raise the usual exceptions."""
+        daemon = MagicMock()
+        daemon.alive = True
+        daemon.sf_path = None
+        daemon.request.return_value = {
+            "success": False,
+            "error": "Field not allowed: mX",
+            "errorType": "VALIDATION_ERROR",
+            "details": {},
+        }
+        SFConfig._daemon = daemon
+
+        with pytest.raises(SFValidationError):
+            SFConfig._run_java("--build")
+
+    def test_run_java_skips_daemon_for_other_sf_path(self):
+        """A daemon started for another SF install should not be used."""
+        daemon = MagicMock()
+        daemon.alive = True
+        daemon.sf_path = "/other/sf"
+        SFConfig._daemon = daemon
+
+        completed = MagicMock(stdout='{"fields": []}', stderr="")
+        with patch.object(SFConfig, "_java_command", return_value=["java"]), \
+                patch("sfconfig.config.subprocess.run", return_value=completed):
+            result = SFConfig._run_java("--inspect", sf_path="/my/sf")
+
+        daemon.request.assert_not_called()
+        assert result == {"fields": []}